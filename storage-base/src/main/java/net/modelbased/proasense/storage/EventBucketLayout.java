@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage;
+
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class EventBucketLayout {
+    public static String LAYOUT_EVENT = "event";
+    public static String LAYOUT_BUCKET = "bucket";
+    public static String BATCHES_KEY = "batches";
+    public static String COLUMNS_KEY = "columns";
+    public static String TIMESTAMPS_KEY = "timestamps";
+    public static String VALUES_KEY = "values";
+
+    private long window;
+    private int size;
+
+
+    public EventBucketLayout(long window, int size) {
+        this.window = window;
+        this.size = size;
+    }
+
+
+    public static EventBucketLayout createLayout(String layout, String window, String size) {
+        // Default layout stores one document per event
+        if (!LAYOUT_BUCKET.equals(layout))
+            return null;
+
+        return new EventBucketLayout(EventRollup.parseBucketSize(window), new Integer(size).intValue());
+    }
+
+
+    public static boolean isBucketSource(String collectionId) {
+        // Buckets are used per sensor for simple event collections
+        return collectionId.startsWith(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_PREFIX)
+                && !collectionId.equals(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_NAME);
+    }
+
+
+    public long getWindow() {
+        return this.window;
+    }
+
+
+    public int getSize() {
+        return this.size;
+    }
+
+
+    public long getWindowStart(long timestamp) {
+        return timestamp - (timestamp % this.window);
+    }
+
+
+    public static String getColumnField(String column) {
+        // Property values are stored per column under "values", the serialized event column is kept at the top level
+        if (column.equals(EventProperties.STORAGE_SERIALIZED_EVENT_KEY))
+            return column;
+
+        return VALUES_KEY + "." + column;
+    }
+
+
+    public List<UpdateOneModel<Document>> createUpdates(List<Document> documents) {
+        // Group events per time window and column set, every column of a bucket has one element per timestamp
+        Map<String, List<Document>> groupMap = new LinkedHashMap<String, List<Document>>();
+        for (Document document : documents) {
+            String groupKey = getWindowStart(document.getLong("timestamp")) + " " + getColumns(document);
+
+            if (!groupMap.containsKey(groupKey))
+                groupMap.put(groupKey, new ArrayList<Document>());
+
+            groupMap.get(groupKey).add(document);
+        }
+
+        List<UpdateOneModel<Document>> updates = new ArrayList<UpdateOneModel<Document>>();
+        for (List<Document> groupDocuments : groupMap.values()) {
+            Document firstDocument = groupDocuments.get(0);
+            long windowStart = getWindowStart(firstDocument.getLong("timestamp"));
+            List<String> columns = getColumns(firstDocument);
+
+            // Append to a bucket of the window and column set with room for all events, or start a new bucket
+            for (int i = 0; i < groupDocuments.size(); i += this.size) {
+                List<Document> events = groupDocuments.subList(i, Math.min(i + this.size, groupDocuments.size()));
+
+                List<Object> timestamps = new ArrayList<Object>();
+                Map<String, List<Object>> columnValues = new LinkedHashMap<String, List<Object>>();
+                for (String column : columns)
+                    columnValues.put(column, new ArrayList<Object>());
+
+                for (Document event : events) {
+                    timestamps.add(event.get("timestamp"));
+                    for (String column : columns)
+                        columnValues.get(column).add(getValue(event, column));
+                }
+
+                // Updates are built once per write and reused by retries, each update carries its own batch id
+                // A bucket holding the batch id is skipped, the unique index on batch ids fails a retried update with duplicate key
+                ObjectId batchId = new ObjectId();
+                Document filter = new Document("timestamp", windowStart)
+                        .append(COLUMNS_KEY, columns)
+                        .append("count", new Document("$lte", this.size - events.size()))
+                        .append(BATCHES_KEY, new Document("$ne", batchId));
+
+                Document push = new Document(TIMESTAMPS_KEY, new Document("$each", timestamps));
+                for (Map.Entry<String, List<Object>> entry : columnValues.entrySet())
+                    push.append(getColumnField(entry.getKey()), new Document("$each", entry.getValue()));
+                push.append(BATCHES_KEY, batchId);
+
+                Document update = new Document("$inc", new Document("count", events.size()));
+                update.append("$push", push);
+                if (firstDocument.containsKey("sensorId"))
+                    update.append("$setOnInsert", new Document("sensorId", firstDocument.get("sensorId")));
+
+                updates.add(new UpdateOneModel<Document>(filter, update, new UpdateOptions().upsert(true)));
+            }
+        }
+
+        return updates;
+    }
+
+
+    private List<String> getColumns(Document document) {
+        // Columns are the sorted property keys, events stored with the serialized profile only keep the serialized event column
+        List<String> columns = new ArrayList<String>();
+        if (document.get("eventProperties") instanceof Map)
+            columns.addAll(((Map<String, Object>)document.get("eventProperties")).keySet());
+        else if (document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY))
+            columns.add(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
+
+        Collections.sort(columns);
+
+        return columns;
+    }
+
+
+    private Object getValue(Document document, String column) {
+        if (column.equals(EventProperties.STORAGE_SERIALIZED_EVENT_KEY))
+            return document.get(column);
+
+        return ((Map<String, Object>)document.get("eventProperties")).get(column);
+    }
+
+}
@@ -18,17 +18,24 @@
 package net.modelbased.proasense.storage;
 
 import eu.proasense.internal.AnomalyEvent;
+import eu.proasense.internal.ComplexValue;
 import eu.proasense.internal.DerivedEvent;
 import eu.proasense.internal.FeedbackEvent;
+import eu.proasense.internal.PDFType;
 import eu.proasense.internal.PredictedEvent;
 import eu.proasense.internal.RecommendationEvent;
 import eu.proasense.internal.SimpleEvent;
-import org.apache.thrift.TDeserializer;
+import eu.proasense.internal.Status;
+import eu.proasense.internal.VariableType;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
 import org.bson.Document;
 import org.bson.types.Binary;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 
 public class EventConverter<T> {
     private T event;
@@ -63,15 +70,24 @@ public class EventConverter<T> {
 
 
     private SimpleEvent convertDocumentToSimpleEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored, bucket columns without it read as null
+        if (document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY) == null) {
+            SimpleEvent event = new SimpleEvent();
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setSensorId(document.getString("sensorId"));
+            event.setEventProperties(convertDocumentToEventProperties(document.get("eventProperties")));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         SimpleEvent event = new SimpleEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -82,15 +98,25 @@ public class EventConverter<T> {
 
 
     private DerivedEvent convertDocumentToDerivedEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored
+        if (!document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY)) {
+            DerivedEvent event = new DerivedEvent();
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setComponentId(document.getString("componentId"));
+            event.setEventName(document.getString("eventName"));
+            event.setEventProperties(convertDocumentToEventProperties(document.get("eventProperties")));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         DerivedEvent event = new DerivedEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -101,15 +127,28 @@ public class EventConverter<T> {
 
 
     private PredictedEvent convertDocumentToPredictedEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored
+        if (!document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY)) {
+            PredictedEvent event = new PredictedEvent();
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setPdfType(PDFType.valueOf(document.getString("pdfType")));
+            event.setEventProperties(convertDocumentToEventProperties(document.get("eventProperties")));
+            event.setParams(convertStringToDoubleList(document.getString("params")));
+            if (document.containsKey("timestamps"))
+                event.setTimestamps(convertStringToLongList(document.getString("timestamps")));
+            event.setEventName(document.getString("eventName"));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         PredictedEvent event = new PredictedEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -120,15 +159,24 @@ public class EventConverter<T> {
 
 
     private AnomalyEvent convertDocumentToAnomalyEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored
+        if (!document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY)) {
+            AnomalyEvent event = new AnomalyEvent();
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setAnomalyType(document.getString("anomalyType"));
+            event.setBlob(document.getString("blob"));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         AnomalyEvent event = new AnomalyEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -139,15 +187,27 @@ public class EventConverter<T> {
 
 
     private RecommendationEvent convertDocumentToRecommendationEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored
+        if (!document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY)) {
+            RecommendationEvent event = new RecommendationEvent();
+            event.setRecommendationId(document.getString("recommendationId"));
+            event.setAction(document.getString("action"));
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setActor(document.getString("actor"));
+            event.setEventProperties(convertDocumentToEventProperties(document.get("eventProperties")));
+            event.setEventName(document.getString("eventName"));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         RecommendationEvent event = new RecommendationEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -158,15 +218,26 @@ public class EventConverter<T> {
 
 
     private FeedbackEvent convertDocumentToFeedbackEvent(Document document) {
+        // Reconstruct event from structured fields if serialized message is not stored
+        if (!document.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY)) {
+            FeedbackEvent event = new FeedbackEvent();
+            event.setActor(document.getString("actor"));
+            event.setTimestamp(document.getLong("timestamp"));
+            event.setStatus(Status.valueOf(document.getString("status")));
+            event.setComments(document.getString("comments"));
+            event.setRecommendationId(document.getString("recommendationId"));
+
+            return event;
+        }
+
         Binary serializedEvent = (Binary)document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
         byte[] bytes = serializedEvent.getData();
 
         // Deserialize event message
-        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
         FeedbackEvent event = new FeedbackEvent();
 
         try {
-            deserializer.deserialize(event, bytes);
+            EventSerializer.deserialize(event, bytes);
         }
         catch (TException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -175,4 +246,68 @@ public class EventConverter<T> {
         return event;
     }
 
+
+    private Map<String, ComplexValue> convertDocumentToEventProperties(Object propertiesObj) {
+        Map<String, ComplexValue> properties = new HashMap<String, ComplexValue>();
+
+        if (propertiesObj == null)
+            return properties;
+
+        // Property keys are stored with "." replaced by "_", BLOB values are restored as STRING
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>)propertiesObj).entrySet()) {
+            // Columns of the bucket layout missing in the bucket of the event read as null
+            Object valueObj = entry.getValue();
+            if (valueObj == null)
+                continue;
+
+            ComplexValue value = new ComplexValue();
+
+            if (valueObj instanceof Long)
+                value.setType(VariableType.LONG);
+            else if (valueObj instanceof Double)
+                value.setType(VariableType.DOUBLE);
+            else if (valueObj instanceof Boolean)
+                value.setType(VariableType.BOOLEAN);
+            else
+                value.setType(VariableType.STRING);
+
+            value.setValue(String.valueOf(valueObj));
+            properties.put(entry.getKey(), value);
+        }
+
+        return properties;
+    }
+
+
+    private List<Double> convertStringToDoubleList(String values) {
+        List<Double> list = new ArrayList<Double>();
+
+        // Lists are stored in List.toString() format, e.g. "[1.0, 2.0]"
+        if (values == null)
+            return list;
+
+        for (String value : values.replace("[", "").replace("]", "").split(",")) {
+            if (!value.trim().isEmpty())
+                list.add(new Double(value.trim()));
+        }
+
+        return list;
+    }
+
+
+    private List<Long> convertStringToLongList(String values) {
+        List<Long> list = new ArrayList<Long>();
+
+        // Lists are stored in List.toString() format, e.g. "[1, 2]"
+        if (values == null)
+            return list;
+
+        for (String value : values.replace("[", "").replace("]", "").split(",")) {
+            if (!value.trim().isEmpty())
+                list.add(new Long(value.trim()));
+        }
+
+        return list;
+    }
+
 }
@@ -17,23 +17,102 @@
  */
 package net.modelbased.proasense.storage;
 
+import eu.proasense.internal.DerivedEvent;
+import eu.proasense.internal.SimpleEvent;
+
+import org.apache.thrift.TBase;
+
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
 
 public class EventDocument {
     private String collectionId;
-    private Document document;
+    private ObjectId id;
+    private volatile Document document;
+    private long createdTime;
+    private TBase event;
+    private EventStorageProfile profile;
+    private byte[] serializedEvent;
+    private EventAcknowledgement acknowledgement;
 
     public EventDocument(String collectionId, Document document) {
         this.collectionId = collectionId;
         this.document = document;
+        this.createdTime = System.currentTimeMillis();
+
+        // Documents read from or converted for MongoDB keep their id
+        if ((document != null) && (document.get("_id") instanceof ObjectId))
+            this.id = document.getObjectId("_id");
+        else
+            this.id = new ObjectId();
+    }
+
+    public EventDocument(String collectionId, TBase event, EventStorageProfile profile, byte[] serializedEvent) {
+        // Document is only built if needed, the event is otherwise encoded directly to BSON by EventDocumentCodec
+        this.collectionId = collectionId;
+        this.event = event;
+        this.profile = profile;
+        this.serializedEvent = serializedEvent;
+        this.createdTime = System.currentTimeMillis();
+        this.id = new ObjectId();
     }
 
     public String getCollectionId() {
             return this.collectionId;
         }
 
+    public ObjectId getId() {
+            return this.id;
+        }
+
     public Document getDocument() {
+            if (this.document == null)
+                this.document = convertEventToDocument();
+
             return this.document;
         }
+
+    public boolean hasDocument() {
+            return this.document != null;
+        }
+
+    public TBase getEvent() {
+            return this.event;
+        }
+
+    public EventStorageProfile getProfile() {
+            return this.profile;
+        }
+
+    public byte[] getSerializedEvent() {
+            return this.serializedEvent;
+        }
+
+    public long getCreatedTime() {
+            return this.createdTime;
+        }
+
+    public void setAcknowledgement(EventAcknowledgement acknowledgement) {
+            this.acknowledgement = acknowledgement;
+        }
+
+    public void acknowledge(boolean isWritten) {
+            if (this.acknowledgement != null)
+                this.acknowledgement.acknowledge(isWritten);
+        }
+
+    private Document convertEventToDocument() {
+        Document document = null;
+        if (this.event instanceof SimpleEvent)
+            document = new EventDocumentConverter((SimpleEvent)this.event, this.profile, this.serializedEvent).getDocument();
+        else if (this.event instanceof DerivedEvent)
+            document = new EventDocumentConverter((DerivedEvent)this.event, this.profile, this.serializedEvent).getDocument();
+
+        // Lazily built documents keep the id assigned at creation, a retried insert writes the same id
+        if (document != null)
+            document.put("_id", this.id);
+
+        return document;
+    }
 }
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage;
+
+import eu.proasense.internal.ComplexValue;
+import eu.proasense.internal.DerivedEvent;
+import eu.proasense.internal.SimpleEvent;
+import eu.proasense.internal.VariableType;
+
+import org.apache.thrift.TException;
+
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.Map;
+
+
+public class EventDocumentCodec implements Codec<EventDocument> {
+    private Codec<Document> documentCodec;
+
+
+    public EventDocumentCodec(Codec<Document> documentCodec) {
+        this.documentCodec = documentCodec;
+    }
+
+
+    public static CodecRegistry createCodecRegistry(CodecRegistry codecRegistry) {
+        // Event documents are encoded by this codec, all other types by the collection codecs
+        return CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new EventDocumentCodec(codecRegistry.get(Document.class))), codecRegistry);
+    }
+
+
+    public Class<EventDocument> getEncoderClass() {
+        return EventDocument.class;
+    }
+
+
+    public void encode(BsonWriter writer, EventDocument eventDocument, EncoderContext encoderContext) {
+        // Events already converted to a document, or without a direct encoding, are written from the document
+        if (eventDocument.hasDocument() || !isDirectEncoding(eventDocument)) {
+            // Document id is assigned once per event, a retried insert fails with duplicate key instead of adding the event twice
+            Document document = eventDocument.getDocument();
+            document.put("_id", eventDocument.getId());
+
+            this.documentCodec.encode(writer, document, encoderContext);
+            return;
+        }
+
+        if (eventDocument.getEvent() instanceof SimpleEvent)
+            encodeSimpleEvent(writer, (SimpleEvent)eventDocument.getEvent(), eventDocument);
+        else
+            encodeDerivedEvent(writer, (DerivedEvent)eventDocument.getEvent(), eventDocument);
+    }
+
+
+    public EventDocument decode(BsonReader reader, DecoderContext decoderContext) {
+        // Stored events are read back as documents, the collection is not part of the stored document
+        return new EventDocument(null, this.documentCodec.decode(reader, decoderContext));
+    }
+
+
+    public static boolean isDirectEncoding(EventDocument eventDocument) {
+        return (eventDocument.getEvent() instanceof SimpleEvent) || (eventDocument.getEvent() instanceof DerivedEvent);
+    }
+
+
+    private void encodeSimpleEvent(BsonWriter writer, SimpleEvent event, EventDocument eventDocument) {
+        // Same fields as EventDocumentConverter, written straight to the BSON output of the driver
+        writer.writeStartDocument();
+        writer.writeObjectId("_id", eventDocument.getId());
+        writer.writeInt64("timestamp", event.getTimestamp());
+
+        if (!eventDocument.getProfile().equals(EventStorageProfile.SERIALIZED)) {
+            writeString(writer, "sensorId", event.getSensorId());
+            writeEventProperties(writer, event.getEventProperties());
+        }
+
+        if (!eventDocument.getProfile().equals(EventStorageProfile.STRUCTURED))
+            writeSerializedEvent(writer, eventDocument);
+
+        writer.writeEndDocument();
+    }
+
+
+    private void encodeDerivedEvent(BsonWriter writer, DerivedEvent event, EventDocument eventDocument) {
+        writer.writeStartDocument();
+        writer.writeObjectId("_id", eventDocument.getId());
+        writer.writeInt64("timestamp", event.getTimestamp());
+        writeString(writer, "eventName", event.getEventName());
+
+        if (!eventDocument.getProfile().equals(EventStorageProfile.SERIALIZED)) {
+            writeString(writer, "componentId", event.getComponentId());
+            writeEventProperties(writer, event.getEventProperties());
+        }
+
+        if (!eventDocument.getProfile().equals(EventStorageProfile.STRUCTURED))
+            writeSerializedEvent(writer, eventDocument);
+
+        writer.writeEndDocument();
+    }
+
+
+    private void writeString(BsonWriter writer, String name, String value) {
+        if (value == null)
+            writer.writeNull(name);
+        else
+            writer.writeString(name, value);
+    }
+
+
+    private void writeSerializedEvent(BsonWriter writer, EventDocument eventDocument) {
+        byte[] bytes = eventDocument.getSerializedEvent();
+
+        try {
+            if (bytes == null)
+                bytes = EventSerializer.serialize(eventDocument.getEvent());
+
+            writer.writeBinaryData(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, new BsonBinary(bytes));
+        }
+        catch (TException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+
+    private void writeEventProperties(BsonWriter writer, Map<String, ComplexValue> properties) {
+        // Property values are converted as in EventDocumentConverter.convertEventPropertiesToDBObject
+        writer.writeStartDocument("eventProperties");
+
+        if (properties != null) {
+            for (Map.Entry<String, ComplexValue> entry : properties.entrySet()) {
+                String key = entry.getKey();
+                if (key.indexOf('.') >= 0)
+                    key = key.replace(".", "_");
+
+                String valueKey = entry.getValue().getValue();
+                VariableType valueType = entry.getValue().getType();
+
+                if (VariableType.LONG.equals(valueType)) {
+                    try {
+                        writer.writeInt64(key, Long.parseLong(removeSpaces(valueKey)));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.writeInt64(key, 0);
+                    }
+                }
+                else if (VariableType.DOUBLE.equals(valueType)) {
+                    try {
+                        writer.writeDouble(key, Double.parseDouble(removeSpaces(valueKey)));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.writeDouble(key, 0.0);
+                    }
+                }
+                else if (VariableType.BOOLEAN.equals(valueType))
+                    writer.writeBoolean(key, Boolean.parseBoolean(removeSpaces(valueKey)));
+                else if (VariableType.STRING.equals(valueType) || VariableType.BLOB.equals(valueType))
+                    writeString(writer, key, valueKey);
+            }
+        }
+
+        writer.writeEndDocument();
+    }
+
+
+    private String removeSpaces(String value) {
+        if (value == null)
+            return "";
+
+        if (value.indexOf(' ') < 0)
+            return value;
+
+        return value.replace(" ", "");
+    }
+
+}
@@ -31,9 +31,8 @@ import eu.proasense.internal.VariableType;
 
 import org.apache.log4j.Logger;
 
+import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
-import org.apache.thrift.TSerializer;
-import org.apache.thrift.protocol.TBinaryProtocol;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -48,27 +47,75 @@ public class EventDocumentConverter {
     private EventDocument eventDocument;
 
     public EventDocumentConverter(SimpleEvent event) {
-        this.eventDocument = convertSimpleEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(SimpleEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(SimpleEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertSimpleEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocumentConverter(DerivedEvent event) {
-        this.eventDocument = convertDerivedEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(DerivedEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(DerivedEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertDerivedEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocumentConverter(PredictedEvent event) {
-        this.eventDocument = convertPredictedEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(PredictedEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(PredictedEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertPredictedEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocumentConverter(AnomalyEvent event) {
-        this.eventDocument = convertAnomalyEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(AnomalyEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(AnomalyEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertAnomalyEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocumentConverter(RecommendationEvent event) {
-        this.eventDocument = convertRecommendationEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(RecommendationEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(RecommendationEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertRecommendationEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocumentConverter(FeedbackEvent event) {
-        this.eventDocument = convertFeedbackEventToDocument(event);
+        this(event, EventStorageProfile.BOTH);
+    }
+
+    public EventDocumentConverter(FeedbackEvent event, EventStorageProfile profile) {
+        this(event, profile, null);
+    }
+
+    public EventDocumentConverter(FeedbackEvent event, EventStorageProfile profile, byte[] serializedEvent) {
+        this.eventDocument = convertFeedbackEventToDocument(event, profile, serializedEvent);
     }
 
     public EventDocument getEventDocument() {
@@ -84,135 +131,175 @@ public class EventDocumentConverter {
     }
 
 
-    private EventDocument convertSimpleEventToDocument(SimpleEvent event) {
+    private EventDocument convertSimpleEventToDocument(SimpleEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
         document.append("timestamp", event.getTimestamp());
-        document.append("sensorId", event.getSensorId());
-        document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
-
-        // Serialize event message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((SimpleEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("sensorId", event.getSensorId());
+            document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize event message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_PREFIX + event.getSensorId(), document);
     }
 
 
-    private EventDocument convertDerivedEventToDocument(DerivedEvent event) {
+    private EventDocument convertDerivedEventToDocument(DerivedEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
         document.append("timestamp", event.getTimestamp());
-        document.append("componentId", event.getComponentId());
         document.append("eventName", event.getEventName());
-        document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
 
-        // Serialize message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((DerivedEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("componentId", event.getComponentId());
+            document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.DERIVEDEVENT_STORAGE_COLLECTION_PREFIX + event.getComponentId(), document);
     }
 
 
-    private EventDocument convertPredictedEventToDocument(PredictedEvent event) {
+    private EventDocument convertPredictedEventToDocument(PredictedEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
         document.append("timestamp", event.getTimestamp());
-        document.append("pdfType", event.getPdfType().toString());
-        document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
-        document.append("params", event.getParams().toString());
-        document.append("timestamps", event.getTimestamps().toString());
-        document.append("eventName", event.getEventName());
 
-        // Serialize message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((PredictedEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("pdfType", event.getPdfType().toString());
+            document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
+            document.append("params", event.getParams().toString());
+            if (event.isSetTimestamps())
+                document.append("timestamps", event.getTimestamps().toString());
+            document.append("eventName", event.getEventName());
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.PREDICTEDEVENT_STORAGE_COLLECTION_NAME, document);
     }
 
 
-    private EventDocument convertAnomalyEventToDocument(AnomalyEvent event) {
+    private EventDocument convertAnomalyEventToDocument(AnomalyEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
         document.append("timestamp", event.getTimestamp());
-        document.append("anomalyType", event.getAnomalyType());
-        document.append("blob", event.getBlob());
-
-        // Serialize message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((AnomalyEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("anomalyType", event.getAnomalyType());
+            document.append("blob", event.getBlob());
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.ANOMALYEVENT_STORAGE_COLLECTION_NAME, document);
     }
 
 
-    private EventDocument convertRecommendationEventToDocument(RecommendationEvent event) {
+    private EventDocument convertRecommendationEventToDocument(RecommendationEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
-        document.append("recommendationId", event.getRecommendationId());
-        document.append("action", event.getAction());
         document.append("timestamp", event.getTimestamp());
-        document.append("actor", event.getActor());
-        document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
-        document.append("eventName", event.getEventName());
 
-        // Serialize message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((RecommendationEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("recommendationId", event.getRecommendationId());
+            document.append("action", event.getAction());
+            document.append("actor", event.getActor());
+            document.append("eventProperties", convertEventPropertiesToDBObject(event.getEventProperties()));
+            document.append("eventName", event.getEventName());
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.RECOMMENDATIONEVENT_STORAGE_COLLECTION_NAME, document);
     }
 
 
-    private EventDocument convertFeedbackEventToDocument(FeedbackEvent event) {
+    private EventDocument convertFeedbackEventToDocument(FeedbackEvent event, EventStorageProfile profile, byte[] serializedEvent) {
         Document document = new Document("_id", new ObjectId());
-        document.append("actor", event.getActor());
         document.append("timestamp", event.getTimestamp());
-        document.append("status", event.getStatus().toString());
-        document.append("comments", event.getComments());
-        document.append("recommendationId", event.getRecommendationId());
-
-        // Serialize message
-        TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
-        try {
-            byte[] bytes = serializer.serialize((FeedbackEvent) event);
-            document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+
+        // Store structured fields unless serialized message only is stored
+        if (!profile.equals(EventStorageProfile.SERIALIZED)) {
+            document.append("actor", event.getActor());
+            document.append("status", event.getStatus().toString());
+            document.append("comments", event.getComments());
+            document.append("recommendationId", event.getRecommendationId());
         }
-        catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+
+        // Serialize message unless structured fields only are stored
+        if (!profile.equals(EventStorageProfile.STRUCTURED)) {
+            try {
+                byte[] bytes = serializeEvent(event, serializedEvent);
+                document.append(EventProperties.STORAGE_SERIALIZED_EVENT_KEY, bytes);
+            }
+            catch (TException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
         }
 
         return new EventDocument(EventProperties.FEEDBACKEVENT_STORAGE_COLLECTION_NAME, document);
     }
 
 
+    private byte[] serializeEvent(TBase event, byte[] serializedEvent) throws TException {
+        // Message bytes received from Kafka are stored as is, avoiding a second serialization of the event
+        if (serializedEvent != null)
+            return serializedEvent;
+
+        return EventSerializer.serialize(event);
+    }
+
+
     private DBObject convertEventPropertiesToDBObject(Map<String, ComplexValue> properties) {
         DBObject propertiesObj = new BasicDBObject();
 
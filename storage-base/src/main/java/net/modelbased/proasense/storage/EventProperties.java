@@ -39,5 +39,4 @@ public class EventProperties {
 
     public static String STORAGE_DATABASE_NAME = "proasense_db";
     public static String STORAGE_SERIALIZED_EVENT_KEY = "SERIALIZED_EVENT";
-    public static String STORAGE_HEARTBEAT = "STORAGE_HEARTBEAT";
 }
@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage;
+
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class EventRollup {
+    public static String COVERAGE_ID = "coverage";
+    public static String COVERAGE_SINCE_KEY = "since";
+    public static String COVERAGE_GAPS_KEY = "gaps";
+    public static String GAP_START_KEY = "start";
+    public static String GAP_END_KEY = "end";
+    private static int BATCH_HISTORY = 100;
+
+    private String name;
+    private long bucketSize;
+
+
+    public EventRollup(String name, long bucketSize) {
+        this.name = name;
+        this.bucketSize = bucketSize;
+    }
+
+
+    public static List<EventRollup> createRollups(String rollups) {
+        // Comma separated list of rollup tiers, e.g. "1m,1h"
+        List<EventRollup> rollupList = new ArrayList<EventRollup>();
+
+        if (rollups == null)
+            return rollupList;
+
+        for (String name : rollups.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+
+            long bucketSize = parseBucketSize(name);
+            if (bucketSize > 0)
+                rollupList.add(new EventRollup(name, bucketSize));
+            else
+                System.out.println("Invalid rollup tier: " + name);
+        }
+
+        return rollupList;
+    }
+
+
+    public static long parseBucketSize(String bucket) {
+        // Bucket width in milliseconds, e.g. 500ms, 1s, 1m, 1h, 1d or plain milliseconds
+        long bucketSize = 0;
+        try {
+            if (bucket.endsWith("ms"))
+                bucketSize = new Long(bucket.substring(0, bucket.length() - 2)).longValue();
+            else if (bucket.endsWith("s"))
+                bucketSize = new Long(bucket.substring(0, bucket.length() - 1)).longValue() * 1000;
+            else if (bucket.endsWith("m"))
+                bucketSize = new Long(bucket.substring(0, bucket.length() - 1)).longValue() * 60 * 1000;
+            else if (bucket.endsWith("h"))
+                bucketSize = new Long(bucket.substring(0, bucket.length() - 1)).longValue() * 60 * 60 * 1000;
+            else if (bucket.endsWith("d"))
+                bucketSize = new Long(bucket.substring(0, bucket.length() - 1)).longValue() * 24 * 60 * 60 * 1000;
+            else
+                bucketSize = new Long(bucket).longValue();
+        } catch (Exception e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        return bucketSize;
+    }
+
+
+    public static boolean isRollupSource(String collectionId) {
+        // Rollups are maintained per sensor for simple event collections
+        return collectionId.startsWith(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_PREFIX)
+                && !collectionId.equals(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_NAME);
+    }
+
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    public long getBucketSize() {
+        return this.bucketSize;
+    }
+
+
+    public String getCollectionId(String collectionId) {
+        return collectionId + "." + this.name;
+    }
+
+
+    public long getBucketStart(long timestamp) {
+        return timestamp - (timestamp % this.bucketSize);
+    }
+
+
+    public Document createBucketFilter(List<Document> documents) {
+        // Buckets touched by a batch are read before they are updated, the mean and M2 of each property are merged on the writer
+        List<Long> bucketStarts = new ArrayList<Long>();
+        for (Document document : documents) {
+            Long bucketStart = getBucketStart(document.getLong("timestamp"));
+            if (!bucketStarts.contains(bucketStart))
+                bucketStarts.add(bucketStart);
+        }
+
+        return new Document("_id", new Document("$in", bucketStarts));
+    }
+
+
+    public Document getBucketProjection() {
+        return new Document("count", 1).append("batches", 1).append("properties", 1);
+    }
+
+
+    public List<UpdateOneModel<Document>> createUpdates(List<Document> documents, ObjectId batchId, List<Document> buckets) {
+        // Combine events per bucket first, one upsert is written per bucket and flush
+        long maxTimestamp = Long.MIN_VALUE;
+        Map<Long, Document> incMap = new LinkedHashMap<Long, Document>();
+        Map<Long, Document> minMap = new LinkedHashMap<Long, Document>();
+        Map<Long, Document> maxMap = new LinkedHashMap<Long, Document>();
+        Map<Long, Map<String, EventMoments>> momentsMap = new LinkedHashMap<Long, Map<String, EventMoments>>();
+
+        for (Document document : documents) {
+            Long bucketStart = getBucketStart(document.getLong("timestamp"));
+            maxTimestamp = Math.max(maxTimestamp, document.getLong("timestamp"));
+
+            Document inc = incMap.get(bucketStart);
+            if (inc == null) {
+                inc = new Document();
+                incMap.put(bucketStart, inc);
+                minMap.put(bucketStart, new Document());
+                maxMap.put(bucketStart, new Document());
+                momentsMap.put(bucketStart, new LinkedHashMap<String, EventMoments>());
+            }
+            Document min = minMap.get(bucketStart);
+            Document max = maxMap.get(bucketStart);
+            Map<String, EventMoments> moments = momentsMap.get(bucketStart);
+
+            addNumber(inc, "count", 1L);
+
+            Map<String, Object> eventProperties = (Map<String, Object>)document.get("eventProperties");
+            if (eventProperties == null)
+                continue;
+
+            for (Map.Entry<String, Object> entry : eventProperties.entrySet()) {
+                if (!(entry.getValue() instanceof Long) && !(entry.getValue() instanceof Double))
+                    continue;
+
+                Number value = (Number)entry.getValue();
+                String field = "properties." + entry.getKey();
+
+                addNumber(inc, field + ".count", 1L);
+                addNumber(inc, field + ".sum", value);
+
+                Number minValue = (Number)min.get(field + ".min");
+                if ((minValue == null) || (value.doubleValue() < minValue.doubleValue()))
+                    min.put(field + ".min", value);
+
+                Number maxValue = (Number)max.get(field + ".max");
+                if ((maxValue == null) || (value.doubleValue() > maxValue.doubleValue()))
+                    max.put(field + ".max", value);
+
+                EventMoments propertyMoments = moments.get(entry.getKey());
+                if (propertyMoments == null) {
+                    propertyMoments = new EventMoments();
+                    moments.put(entry.getKey(), propertyMoments);
+                }
+                propertyMoments.add(value.doubleValue());
+            }
+        }
+
+        Map<Long, Document> bucketMap = new HashMap<Long, Document>();
+        for (Document bucket : buckets) {
+            if (bucket.get("_id") instanceof Long)
+                bucketMap.put(bucket.getLong("_id"), bucket);
+        }
+
+        List<UpdateOneModel<Document>> updates = new ArrayList<UpdateOneModel<Document>>();
+        for (Map.Entry<Long, Document> entry : incMap.entrySet()) {
+            Long bucketStart = entry.getKey();
+            Document bucket = bucketMap.get(bucketStart);
+
+            // Each batch is applied once per bucket, a retried batch skips the buckets it has already updated
+            if ((bucket != null) && (bucket.get("batches") instanceof List) && ((List<Object>)bucket.get("batches")).contains(batchId))
+                continue;
+
+            Document update = new Document("$setOnInsert", new Document("timestamp", bucketStart));
+            update.append("$inc", entry.getValue());
+            if (!minMap.get(bucketStart).isEmpty())
+                update.append("$min", minMap.get(bucketStart));
+            if (!maxMap.get(bucketStart).isEmpty())
+                update.append("$max", maxMap.get(bucketStart));
+            update.append("$push", new Document("batches", new Document("$each", Arrays.asList(batchId)).append("$slice", -BATCH_HISTORY)));
+
+            Document moments = createMoments(bucket, momentsMap.get(bucketStart));
+            if (!moments.isEmpty())
+                update.append("$set", moments);
+
+            // Mean and M2 are merged from the bucket as read, the update only applies if no other batch changed the bucket meanwhile
+            Document filter = new Document("_id", bucketStart);
+            if (bucket == null)
+                filter.append("count", new Document("$exists", false));
+            else
+                filter.append("count", bucket.get("count"));
+            updates.add(new UpdateOneModel<Document>(filter, update, new UpdateOptions().upsert(true)));
+        }
+
+        // Rollups only cover events written after the first rollup write, earlier buckets are read from raw events
+        if (!incMap.isEmpty()) {
+            Document coverage = new Document("$setOnInsert", new Document(COVERAGE_SINCE_KEY, getBucketStart(maxTimestamp) + this.bucketSize));
+            updates.add(new UpdateOneModel<Document>(new Document("_id", COVERAGE_ID), coverage, new UpdateOptions().upsert(true)));
+        }
+
+        return updates;
+    }
+
+
+    public UpdateOneModel<Document> createGapUpdate(List<Document> documents) {
+        // Buckets of a batch that could not be written after all retries are not covered, the reader reads their range from raw events
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (Document document : documents) {
+            minTimestamp = Math.min(minTimestamp, document.getLong("timestamp"));
+            maxTimestamp = Math.max(maxTimestamp, document.getLong("timestamp"));
+        }
+
+        Document gap = new Document(GAP_START_KEY, getBucketStart(minTimestamp)).append(GAP_END_KEY, getBucketStart(maxTimestamp) + this.bucketSize - 1);
+        Document update = new Document("$setOnInsert", new Document(COVERAGE_SINCE_KEY, getBucketStart(maxTimestamp) + this.bucketSize))
+                .append("$addToSet", new Document(COVERAGE_GAPS_KEY, gap));
+
+        return new UpdateOneModel<Document>(new Document("_id", COVERAGE_ID), update, new UpdateOptions().upsert(true));
+    }
+
+
+    private Document createMoments(Document bucket, Map<String, EventMoments> moments) {
+        Document properties = null;
+        if ((bucket != null) && (bucket.get("properties") instanceof Document))
+            properties = (Document)bucket.get("properties");
+
+        Document set = new Document();
+        for (Map.Entry<String, EventMoments> entry : moments.entrySet()) {
+            EventMoments propertyMoments = entry.getValue();
+
+            Document property = null;
+            if ((properties != null) && (properties.get(entry.getKey()) instanceof Document))
+                property = (Document)properties.get(entry.getKey());
+
+            if ((property != null) && (property.get("count") instanceof Number)) {
+                // Buckets written before mean and M2 were stored have no variance, they are left without
+                if (!(property.get("mean") instanceof Number) || !(property.get("m2") instanceof Number))
+                    continue;
+
+                propertyMoments.merge(((Number)property.get("count")).longValue(), ((Number)property.get("mean")).doubleValue(), ((Number)property.get("m2")).doubleValue());
+            }
+
+            set.append("properties." + entry.getKey() + ".mean", propertyMoments.mean);
+            set.append("properties." + entry.getKey() + ".m2", propertyMoments.m2);
+        }
+
+        return set;
+    }
+
+
+    private void addNumber(Document document, String key, Number value) {
+        Number current = (Number)document.get(key);
+
+        if (current == null)
+            document.put(key, value);
+        else if ((current instanceof Long) && (value instanceof Long))
+            document.put(key, current.longValue() + value.longValue());
+        else
+            document.put(key, current.doubleValue() + value.doubleValue());
+    }
+
+
+    private static class EventMoments {
+        // Count, mean and sum of squared deviations from the mean (M2), updated with Welford's and merged with Chan's formula
+        private long count;
+        private double mean;
+        private double m2;
+
+        public void add(double value) {
+            this.count++;
+            double delta = value - this.mean;
+            this.mean = this.mean + delta / this.count;
+            this.m2 = this.m2 + delta * (value - this.mean);
+        }
+
+        public void merge(long count, double mean, double m2) {
+            if (count == 0)
+                return;
+
+            long total = this.count + count;
+            double delta = mean - this.mean;
+            this.mean = this.mean + delta * count / total;
+            this.m2 = this.m2 + m2 + delta * delta * this.count * count / total;
+            this.count = total;
+        }
+    }
+
+}
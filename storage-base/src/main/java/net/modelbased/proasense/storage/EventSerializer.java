@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+
+public class EventSerializer {
+    // Thrift serializers are not thread safe, each thread reuses its own instances and protocol buffers
+    private static ThreadLocal<TSerializer> serializer = new ThreadLocal<TSerializer>() {
+        protected TSerializer initialValue() {
+            return new TSerializer(new TBinaryProtocol.Factory());
+        }
+    };
+
+    private static ThreadLocal<TDeserializer> deserializer = new ThreadLocal<TDeserializer>() {
+        protected TDeserializer initialValue() {
+            return new TDeserializer(new TBinaryProtocol.Factory());
+        }
+    };
+
+    private static ThreadLocal<TSerializer> compactSerializer = new ThreadLocal<TSerializer>() {
+        protected TSerializer initialValue() {
+            return new TSerializer(new TCompactProtocol.Factory());
+        }
+    };
+
+
+    private EventSerializer() {
+    }
+
+
+    public static byte[] serialize(TBase event) throws TException {
+        return serializer.get().serialize(event);
+    }
+
+
+    public static byte[] serializeCompact(TBase event) throws TException {
+        return compactSerializer.get().serialize(event);
+    }
+
+
+    public static void deserialize(TBase event, byte[] bytes) throws TException {
+        deserializer.get().deserialize(event, bytes);
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+
+public class EventMediaType {
+    public final static String APPLICATION_THRIFT = "application/x-thrift";
+    public final static MediaType APPLICATION_THRIFT_TYPE = MediaType.valueOf(APPLICATION_THRIFT);
+    public final static String APPLICATION_THRIFT_COMPACT = "application/x-thrift-compact";
+    public final static MediaType APPLICATION_THRIFT_COMPACT_TYPE = MediaType.valueOf(APPLICATION_THRIFT_COMPACT);
+
+
+    private EventMediaType() {
+    }
+
+
+    public static MediaType getEventMediaType(HttpHeaders headers) {
+        // Acceptable media types are ordered by preference, the first one matching a produced type wins
+        for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+            if (mediaType.isWildcardType() || mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+                return MediaType.APPLICATION_JSON_TYPE;
+            if (mediaType.isCompatible(APPLICATION_THRIFT_TYPE))
+                return APPLICATION_THRIFT_TYPE;
+            if (mediaType.isCompatible(APPLICATION_THRIFT_COMPACT_TYPE))
+                return APPLICATION_THRIFT_COMPACT_TYPE;
+        }
+
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
+
+
+    public static boolean isJsonAcceptable(HttpHeaders headers) {
+        // Wildcards accept JSON, an empty Accept header is read as a wildcard
+        for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+            if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    public static boolean isThriftType(MediaType mediaType) {
+        return mediaType.equals(APPLICATION_THRIFT_TYPE) || mediaType.equals(APPLICATION_THRIFT_COMPACT_TYPE);
+    }
+
+}
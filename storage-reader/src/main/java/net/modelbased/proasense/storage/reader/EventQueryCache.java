@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import net.modelbased.proasense.storage.EventRollup;
+
+import org.bson.Document;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class EventQueryCache {
+    private static EventQueryCache instance;
+
+    private int maxEntries;
+    private long settleTime;
+    private long timeToLive;
+    private Map<String, EventQueryCacheEntry> entries;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong bypasses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private AtomicLong expirations = new AtomicLong();
+
+
+    private EventQueryCache(int maxEntries, long settleTime, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.settleTime = settleTime;
+        this.timeToLive = timeToLive;
+
+        // Access ordered map, the least recently used result is evicted when the cache is full
+        this.entries = new LinkedHashMap<String, EventQueryCacheEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, EventQueryCacheEntry> eldest) {
+                if (size() <= EventQueryCache.this.maxEntries)
+                    return false;
+
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+
+    public static synchronized EventQueryCache getInstance(Properties serverProperties) {
+        if (instance == null) {
+            // Storage reader query cache configuration properties
+            int NO_CACHE_SIZE = new Integer(serverProperties.getProperty("proasense.storage.reader.cache.size", "1000")).intValue();
+            long NO_CACHE_SETTLE = EventRollup.parseBucketSize(serverProperties.getProperty("proasense.storage.reader.cache.settle", "5m"));
+            long NO_CACHE_TTL = EventRollup.parseBucketSize(serverProperties.getProperty("proasense.storage.reader.cache.ttl", "10m"));
+
+            instance = new EventQueryCache(NO_CACHE_SIZE, NO_CACHE_SETTLE, NO_CACHE_TTL);
+        }
+
+        return instance;
+    }
+
+
+    public static String createKey(String collectionId, EventQueryOperation queryOperation, String propertyKey, long startTime, long endTime, long bucketSize) {
+        return collectionId + "|" + queryOperation + "|" + propertyKey + "|" + startTime + "|" + endTime + "|" + bucketSize;
+    }
+
+
+    public boolean isCacheable(long endTime) {
+        // Only time ranges that ended before events can still arrive are immutable
+        return (this.maxEntries > 0) && (endTime < System.currentTimeMillis() - this.settleTime);
+    }
+
+
+    public List<Document> get(String key, long endTime) {
+        if (!isCacheable(endTime)) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+
+        // Events arriving after the settle time (consumer lag, replays) are visible once the cached result has expired
+        List<Document> result = null;
+        synchronized (this.entries) {
+            EventQueryCacheEntry entry = this.entries.get(key);
+            if ((entry != null) && (System.currentTimeMillis() - entry.createdTime > this.timeToLive)) {
+                this.entries.remove(key);
+                expirations.incrementAndGet();
+            }
+            else if (entry != null)
+                result = entry.result;
+        }
+
+        if (result == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+
+        return result;
+    }
+
+
+    public void put(String key, long endTime, List<Document> result) {
+        if (!isCacheable(endTime))
+            return;
+
+        synchronized (this.entries) {
+            this.entries.put(key, new EventQueryCacheEntry(result));
+        }
+    }
+
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+
+    public String getStatistics() {
+        int size;
+        synchronized (this.entries) {
+            size = this.entries.size();
+        }
+
+        long lookups = hits.get() + misses.get();
+        double hitRatio = (lookups == 0) ? 0 : (double)hits.get() / lookups;
+
+        return "Cached queries: " + size + "/" + this.maxEntries + ", hits: " + hits.get() + ", misses: " + misses.get()
+                + ", hit ratio: " + hitRatio + ", bypasses: " + bypasses.get() + ", evictions: " + evictions.get() + ", expirations: " + expirations.get();
+    }
+
+
+    private static class EventQueryCacheEntry {
+        private List<Document> result;
+        private long createdTime;
+
+        public EventQueryCacheEntry(List<Document> result) {
+            this.result = result;
+            this.createdTime = System.currentTimeMillis();
+        }
+    }
+
+}
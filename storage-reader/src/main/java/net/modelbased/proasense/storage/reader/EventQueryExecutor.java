@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class EventQueryExecutor {
+    private static EventQueryExecutor instance;
+
+    private ThreadPoolExecutor executor;
+    private long queryTimeout;
+    private Semaphore streams;
+    private long streamTimeout;
+
+
+    private EventQueryExecutor(int maxQueries, int queueSize, long queryTimeout, int maxStreams, long streamTimeout) {
+        this.queryTimeout = queryTimeout;
+
+        // Streamed results are written by the container threads, concurrent streams are bounded separately
+        this.streams = new Semaphore(maxStreams);
+        this.streamTimeout = streamTimeout;
+
+        // Bounded pool and queue, queries beyond max + queue size are rejected
+        this.executor = new ThreadPoolExecutor(maxQueries, maxQueries, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new EventQueryThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+
+    public static synchronized EventQueryExecutor getInstance(Properties serverProperties) {
+        if (instance == null) {
+            // Storage reader query executor configuration properties
+            int NO_QUERY_THREADS = new Integer(serverProperties.getProperty("proasense.storage.reader.query.threads", "16")).intValue();
+            int NO_QUERY_QUEUESIZE = new Integer(serverProperties.getProperty("proasense.storage.reader.query.queuesize", "64")).intValue();
+            long NO_QUERY_TIMEOUT = new Long(serverProperties.getProperty("proasense.storage.reader.query.timeout", "30000")).longValue();
+            int NO_STREAM_MAX = new Integer(serverProperties.getProperty("proasense.storage.reader.stream.max", "16")).intValue();
+            long NO_STREAM_TIMEOUT = new Long(serverProperties.getProperty("proasense.storage.reader.stream.timeout", "300000")).longValue();
+
+            instance = new EventQueryExecutor(NO_QUERY_THREADS, NO_QUERY_QUEUESIZE, NO_QUERY_TIMEOUT, NO_STREAM_MAX, NO_STREAM_TIMEOUT);
+        }
+
+        return instance;
+    }
+
+
+    public <T> T execute(Callable<T> query) throws InterruptedException, ExecutionException, TimeoutException {
+        // Throws RejectedExecutionException if all query threads are busy and the queue is full
+        EventQueryTask<T> task = new EventQueryTask<T>(query);
+        Future<T> future = this.executor.submit(task);
+
+        try {
+            return future.get(this.queryTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            task.abandon();
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+
+    public <T> T executeQuery(Callable<T> query) {
+        try {
+            return execute(query);
+        }
+        catch (RejectedExecutionException e) {
+            // Return HTTP response 503 if the maximum number of concurrent and queued queries is reached
+            throw new WebApplicationException(Response.status(503).header("Retry-After", "1").entity("Storage reader query capacity exceeded").build());
+        }
+        catch (TimeoutException e) {
+            // Return HTTP response 504 if the query did not complete within the query timeout
+            throw new WebApplicationException(Response.status(504).entity("Storage reader query timed out").build());
+        }
+        catch (Exception e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(Response.status(500).entity(e.getClass().getName() + ": " + e.getMessage()).build());
+        }
+    }
+
+
+    public <T extends Closeable> T openStream(Callable<T> query) {
+        // Return HTTP response 503 if the maximum number of concurrent streams is reached, the caller releases the permit when the stream ends
+        if (!tryAcquireStream())
+            throw new WebApplicationException(Response.status(503).header("Retry-After", "1").entity("Storage reader stream capacity exceeded").build());
+
+        try {
+            return executeQuery(query);
+        }
+        catch (RuntimeException e) {
+            releaseStream();
+            throw e;
+        }
+    }
+
+
+    public boolean tryAcquireStream() {
+        return this.streams.tryAcquire();
+    }
+
+
+    public void releaseStream() {
+        this.streams.release();
+    }
+
+
+    public long getStreamTimeout() {
+        return this.streamTimeout;
+    }
+
+
+    public int getAvailableStreams() {
+        return this.streams.availablePermits();
+    }
+
+
+    public int getActiveQueries() {
+        return this.executor.getActiveCount();
+    }
+
+
+    public int getQueuedQueries() {
+        return this.executor.getQueue().size();
+    }
+
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+
+    private static class EventQueryTask<T> implements Callable<T> {
+        private Callable<T> query;
+        private T result;
+        private boolean isAbandoned;
+
+        public EventQueryTask(Callable<T> query) {
+            this.query = query;
+        }
+
+        public T call() throws Exception {
+            T result = this.query.call();
+
+            // Cursors opened after the caller timed out are closed, nobody else will read them
+            synchronized (this) {
+                this.result = result;
+                if (this.isAbandoned)
+                    close(result);
+            }
+
+            return result;
+        }
+
+        public synchronized void abandon() {
+            this.isAbandoned = true;
+            close(this.result);
+        }
+
+        private void close(T result) {
+            if (!(result instanceof Closeable))
+                return;
+
+            try {
+                ((Closeable)result).close();
+            }
+            catch (IOException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private static class EventQueryThreadFactory implements ThreadFactory {
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EventQueryExecutor-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -22,5 +22,11 @@ public enum EventQueryOperation {
     DEFAULT,
     AVERAGE,
     MINUMUM,
-    MAXIMUM
+    MAXIMUM,
+    COUNT,
+    SUM,
+    STDDEV,
+    FIRST,
+    LAST,
+    DOWNSAMPLE
 }
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import com.sun.jersey.core.util.Base64;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class EventQueryPage {
+    public static String CONTINUATION_HEADER = "X-Continuation-Token";
+    public static String ORDER_ASCENDING = "asc";
+    public static String ORDER_DESCENDING = "desc";
+    public static String EVENT_INDEX_KEY = "eventIndex";
+
+    private int limit;
+    private boolean isDescending;
+    private Document lastKey;
+    private Document endKey;
+
+
+    public EventQueryPage(int limit, boolean isDescending) {
+        this.limit = limit;
+        this.isDescending = isDescending;
+    }
+
+
+    public EventQueryPage(int limit, boolean isDescending, Document lastKey) {
+        this(limit, isDescending);
+        this.lastKey = lastKey;
+    }
+
+
+    public static EventQueryPage createPage(int limit, String order, String continuation, int maxLimit) {
+        // Requested limit is capped by the server limit, zero means no limit
+        if ((maxLimit > 0) && ((limit <= 0) || (limit > maxLimit)))
+            limit = maxLimit;
+
+        // Queries without limit, order or continuation keep the natural order of the collection
+        if ((limit <= 0) && (order == null) && (continuation == null))
+            return null;
+
+        boolean isDescending = ORDER_DESCENDING.equals(order);
+        if ((order != null) && !isDescending && !ORDER_ASCENDING.equals(order))
+            throw new IllegalArgumentException("Invalid order: " + order);
+
+        if (continuation == null)
+            return new EventQueryPage(Math.max(limit, 0), isDescending);
+
+        return new EventQueryPage(Math.max(limit, 0), isDescending, parseToken(continuation));
+    }
+
+
+    public int getLimit() {
+        // A page bounded by its last event is not limited, events inserted into the page range while it is read are returned as well
+        return (this.endKey == null) ? this.limit : 0;
+    }
+
+
+    public int getPageSize() {
+        return this.limit;
+    }
+
+
+    public boolean isDescending() {
+        return this.isDescending;
+    }
+
+
+    public boolean hasContinuation() {
+        return this.lastKey != null;
+    }
+
+
+    public long getLastTimestamp() {
+        return this.lastKey.getLong("timestamp");
+    }
+
+
+    public void setEndKey(Document endKey) {
+        this.endKey = endKey;
+    }
+
+
+    public Document getSort(boolean isBucketLayout) {
+        // Events with equal timestamps are ordered by document id, and by position within a bucket
+        int direction = this.isDescending ? -1 : 1;
+        Document sort = new Document("timestamp", direction).append("_id", direction);
+        if (isBucketLayout)
+            sort.append(EVENT_INDEX_KEY, direction);
+
+        return sort;
+    }
+
+
+    public Document getKeyProjection(boolean isBucketLayout) {
+        Document projection = new Document("timestamp", 1).append("_id", 1);
+        if (isBucketLayout)
+            projection.append(EVENT_INDEX_KEY, 1);
+
+        return projection;
+    }
+
+
+    public Document getFilter() {
+        // Next page starts after the last event of the previous page, a page with a known last event ends with it
+        Document filter = new Document();
+        if ((this.lastKey != null) && (this.endKey != null))
+            filter.append("$and", Arrays.asList(createKeyFilter(this.lastKey, this.isDescending ? "$lt" : "$gt"), createKeyFilter(this.endKey, this.isDescending ? "$gte" : "$lte")));
+        else if (this.lastKey != null)
+            filter.putAll(createKeyFilter(this.lastKey, this.isDescending ? "$lt" : "$gt"));
+        else if (this.endKey != null)
+            filter.putAll(createKeyFilter(this.endKey, this.isDescending ? "$gte" : "$lte"));
+
+        return filter;
+    }
+
+
+    public String createToken(List<Document> documents) {
+        // Only full pages have a next page
+        if ((this.limit == 0) || (documents.size() < this.limit))
+            return null;
+
+        return createKeyToken(documents.get(documents.size() - 1));
+    }
+
+
+    public static String createKeyToken(Document document) {
+        // Opaque token of the sort key of the last event: timestamp, document id and the position of the event within its bucket
+        Object eventIndex = document.get(EVENT_INDEX_KEY);
+        ByteBuffer buffer = ByteBuffer.allocate((eventIndex == null) ? 20 : 24);
+        buffer.putLong(((Number)document.get("timestamp")).longValue());
+        buffer.put(document.getObjectId("_id").toByteArray());
+        if (eventIndex != null)
+            buffer.putInt(((Number)eventIndex).intValue());
+
+        return new String(Base64.encode(buffer.array())).replace('+', '-').replace('/', '_');
+    }
+
+
+    private static Document parseToken(String continuation) {
+        // Tokens are 20 bytes, or 24 bytes with the position within the bucket, in URL safe base64
+        if (!continuation.matches("[A-Za-z0-9_-]{27}=|[A-Za-z0-9_-]{32}"))
+            throw new IllegalArgumentException("Invalid continuation token: " + continuation);
+
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.decode(continuation.replace('-', '+').replace('_', '/')));
+        Document key = new Document("timestamp", buffer.getLong());
+        byte[] id = new byte[12];
+        buffer.get(id);
+        key.append("_id", new ObjectId(id));
+        if (buffer.hasRemaining())
+            key.append(EVENT_INDEX_KEY, buffer.getInt());
+
+        return key;
+    }
+
+
+    private Document createKeyFilter(Document key, String operator) {
+        // Keyset comparison on timestamp, then document id, then position within the bucket, e.g. {$or: [{timestamp: {$gt: t}}, {timestamp: t, _id: {$gt: id}}]}
+        String strictOperator = operator.substring(0, 3);
+        Object timestamp = key.get("timestamp");
+        Object id = key.get("_id");
+
+        List<Document> clauses = new ArrayList<Document>();
+        clauses.add(new Document("timestamp", new Document(strictOperator, timestamp)));
+        if (key.containsKey(EVENT_INDEX_KEY)) {
+            clauses.add(new Document("timestamp", timestamp).append("_id", new Document(strictOperator, id)));
+            clauses.add(new Document("timestamp", timestamp).append("_id", id).append(EVENT_INDEX_KEY, new Document(operator, key.get(EVENT_INDEX_KEY))));
+        }
+        else
+            clauses.add(new Document("timestamp", timestamp).append("_id", new Document(operator, id)));
+
+        return new Document("$or", clauses);
+    }
+
+}
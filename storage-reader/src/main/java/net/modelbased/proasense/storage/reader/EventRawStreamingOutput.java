@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import net.modelbased.proasense.storage.EventConverter;
+import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventSerializer;
+
+import com.mongodb.client.MongoCursor;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+
+public class EventRawStreamingOutput<T extends TBase> implements StreamingOutput {
+    private Class<T> eventType;
+    private Callable<MongoCursor<RawBsonDocument>> cursorQuery;
+    private MediaType mediaType;
+    private boolean isCompact;
+    private EventQueryExecutor queryExecutor;
+
+
+    public EventRawStreamingOutput(Class<T> eventType, Callable<MongoCursor<RawBsonDocument>> cursorQuery, MediaType mediaType, EventQueryExecutor queryExecutor) {
+        this.eventType = eventType;
+        this.cursorQuery = cursorQuery;
+        this.mediaType = mediaType;
+        this.isCompact = mediaType.equals(EventMediaType.APPLICATION_THRIFT_COMPACT_TYPE);
+        this.queryExecutor = queryExecutor;
+    }
+
+
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+        DocumentCodec documentCodec = null;
+        long deadline = System.currentTimeMillis() + queryExecutor.getStreamTimeout();
+
+        // The stream permit and cursor are only taken once the response is written, a response never written holds neither
+        MongoCursor<RawBsonDocument> cursor = queryExecutor.openStream(cursorQuery);
+
+        // Write each event prefixed with its length, clients read a 4 byte length and then the event until end of stream
+        try {
+            while (cursor.hasNext()) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new WebApplicationException(Response.status(504).entity("Storage reader stream timed out").build());
+
+                RawBsonDocument rawDocument = cursor.next();
+
+                T event = null;
+                byte[] serializedEvent = null;
+                // Profiles may differ per event type and over time, documents without a serialized event (or with a null bucket column) use the structured fields
+                if (rawDocument.containsKey(EventProperties.STORAGE_SERIALIZED_EVENT_KEY) && rawDocument.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY).isBinary()) {
+                    serializedEvent = rawDocument.getBinary(EventProperties.STORAGE_SERIALIZED_EVENT_KEY).getData();
+
+                    // Stored events are Thrift binary, only the compact protocol needs to deserialize them
+                    if (isCompact) {
+                        event = eventType.newInstance();
+                        EventSerializer.deserialize(event, serializedEvent);
+                    }
+                }
+                else {
+                    if (documentCodec == null)
+                        documentCodec = new DocumentCodec();
+
+                    Document document = documentCodec.decode(new BsonDocumentReader(rawDocument), DecoderContext.builder().build());
+                    event = new EventConverter<T>(eventType, document).getEvent();
+                }
+
+                writeEvent(stream, event, serializedEvent, this.mediaType);
+            }
+        } catch (TException e) {
+            // Abort the response, a client must not read a truncated stream as complete
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        } catch (InstantiationException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        } catch (IllegalAccessException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        } finally {
+            cursor.close();
+            queryExecutor.releaseStream();
+        }
+        stream.flush();
+    }
+
+
+    public static void writeEvent(DataOutputStream stream, TBase event, byte[] serializedEvent, MediaType mediaType) throws TException, IOException {
+        // Stored Thrift binary is written as is, events are only serialized if not stored or if the compact protocol is requested
+        if (mediaType.equals(EventMediaType.APPLICATION_THRIFT_COMPACT_TYPE))
+            serializedEvent = EventSerializer.serializeCompact(event);
+        else if (serializedEvent == null)
+            serializedEvent = EventSerializer.serialize(event);
+
+        stream.writeInt(serializedEvent.length);
+        stream.write(serializedEvent);
+    }
+
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import net.modelbased.proasense.storage.EventRollup;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+
+public class EventReaderMongoRollup implements Callable<List<Document>> {
+    private MongoClient mongoClient;
+    private String database;
+    private String collectionId;
+    private long startTime;
+    private long endTime;
+    private String propertyKey;
+    private EventQueryOperation queryOperation;
+    private long bucketSize;
+    private EventRollup rollup;
+    private long bucketWindow;
+
+
+    public EventReaderMongoRollup(MongoClient mongoClient, String database, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, long bucketSize, EventRollup rollup, long bucketWindow) {
+        this.mongoClient = mongoClient;
+        this.database = database;
+        this.collectionId = collectionId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.propertyKey = propertyKey;
+        this.queryOperation = queryOperation;
+        this.bucketSize = bucketSize;
+        this.rollup = rollup;
+        this.bucketWindow = bucketWindow;
+    }
+
+
+    public List<Document> call() {
+        boolean isDownsample = queryOperation.equals(EventQueryOperation.DOWNSAMPLE);
+
+        // Rollup covers the aligned middle of the time range, raw events cover the partial buckets at each end
+        long alignment = isDownsample ? this.bucketSize : this.rollup.getBucketSize();
+        long rollupStart = this.startTime + (alignment - this.startTime % alignment) % alignment;
+        long rollupEnd = (this.endTime + 1) - ((this.endTime + 1) % alignment) - 1;
+
+        // Events written before rollups were enabled are only in the raw collection
+        Document coverage = queryCoverage();
+        if ((coverage == null) || !(coverage.get(EventRollup.COVERAGE_SINCE_KEY) instanceof Number))
+            rollupStart = Long.MAX_VALUE;
+        else {
+            long coverageSince = ((Number)coverage.get(EventRollup.COVERAGE_SINCE_KEY)).longValue();
+            if (rollupStart < coverageSince)
+                rollupStart = coverageSince + (alignment - coverageSince % alignment) % alignment;
+        }
+
+        List<Document> buckets = new ArrayList<Document>();
+        if (rollupStart > rollupEnd)
+            buckets.addAll(queryEvents(this.startTime, this.endTime, alignment));
+        else {
+            if (this.startTime < rollupStart)
+                buckets.addAll(queryEvents(this.startTime, rollupStart - 1, alignment));
+
+            // Ranges of rollup writes that failed after all retries are gaps in the coverage, they are read from raw events
+            boolean isMoments = true;
+            long segmentStart = rollupStart;
+            for (long[] gap : getGaps(coverage, rollupStart, rollupEnd, alignment)) {
+                if (segmentStart < gap[0]) {
+                    List<Document> rollupBuckets = queryRollup(segmentStart, gap[0] - 1, isDownsample ? this.bucketSize : 0);
+                    isMoments = isMoments && hasMoments(rollupBuckets);
+                    buckets.addAll(rollupBuckets);
+                }
+
+                buckets.addAll(queryEvents(gap[0], gap[1], alignment));
+                segmentStart = gap[1] + 1;
+            }
+
+            if (segmentStart <= rollupEnd) {
+                List<Document> rollupBuckets = queryRollup(segmentStart, rollupEnd, isDownsample ? this.bucketSize : 0);
+                isMoments = isMoments && hasMoments(rollupBuckets);
+                buckets.addAll(rollupBuckets);
+            }
+
+            // Rollup buckets written before mean and M2 were stored have no variance, the standard deviation is then read from raw events
+            if (queryOperation.equals(EventQueryOperation.STDDEV) && !isMoments)
+                return mergeBuckets(queryEvents(this.startTime, this.endTime, alignment));
+
+            if (rollupEnd < this.endTime)
+                buckets.addAll(queryEvents(rollupEnd + 1, this.endTime, alignment));
+        }
+
+        if (isDownsample)
+            return buckets;
+
+        return mergeBuckets(buckets);
+    }
+
+
+    private List<Document> queryEvents(long startTime, long endTime, long bucketSize) {
+        EventReaderMongoSync query = new EventReaderMongoSync(this.mongoClient, this.database, EventQueryType.SIMPLE, this.collectionId, startTime, endTime, this.propertyKey, EventQueryOperation.DOWNSAMPLE, null, bucketSize, this.bucketWindow);
+
+        return query.call();
+    }
+
+
+    private Document queryCoverage() {
+        // Start of the first rollup bucket holding all events of its time range, recorded by the writer on the first rollup write
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
+
+        return database.getCollection(this.rollup.getCollectionId(this.collectionId))
+                .find(new Document("_id", EventRollup.COVERAGE_ID)).first();
+    }
+
+
+    private List<long[]> getGaps(Document coverage, long rollupStart, long rollupEnd, long alignment) {
+        // Gaps are widened to the query alignment, clipped to the rollup range and merged
+        List<long[]> gaps = new ArrayList<long[]>();
+        if (!(coverage.get(EventRollup.COVERAGE_GAPS_KEY) instanceof List))
+            return gaps;
+
+        for (Object value : (List<?>)coverage.get(EventRollup.COVERAGE_GAPS_KEY)) {
+            Document gap = (Document)value;
+            long gapStart = ((Number)gap.get(EventRollup.GAP_START_KEY)).longValue();
+            long gapEnd = ((Number)gap.get(EventRollup.GAP_END_KEY)).longValue();
+
+            gapStart = Math.max(rollupStart, gapStart - gapStart % alignment);
+            gapEnd = Math.min(rollupEnd, gapEnd + (alignment - (gapEnd + 1) % alignment) % alignment);
+            if (gapStart <= gapEnd)
+                gaps.add(new long[] {gapStart, gapEnd});
+        }
+
+        Collections.sort(gaps, new Comparator<long[]>() {
+//            @Override
+            public int compare(long[] gap1, long[] gap2) {
+                return (gap1[0] < gap2[0]) ? -1 : ((gap1[0] == gap2[0]) ? 0 : 1);
+            }
+        });
+
+        List<long[]> mergedGaps = new ArrayList<long[]>();
+        for (long[] gap : gaps) {
+            long[] lastGap = mergedGaps.isEmpty() ? null : mergedGaps.get(mergedGaps.size() - 1);
+            if ((lastGap != null) && (gap[0] <= lastGap[1] + 1))
+                lastGap[1] = Math.max(lastGap[1], gap[1]);
+            else
+                mergedGaps.add(gap);
+        }
+
+        return mergedGaps;
+    }
+
+
+    private List<Document> queryRollup(long startTime, long endTime, long bucketSize) {
+        // Get MongoDB database from shared client
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
+
+        MongoCollection<Document> collection = database.getCollection(this.rollup.getCollectionId(this.collectionId));
+
+        String propertyField = "properties." + this.propertyKey.replace(".", "_");
+        String propertyValue = "$" + propertyField;
+
+        List<Document> pipeline = new ArrayList<Document>();
+
+        Document timestampRange = new Document("$gte", startTime).append("$lte", endTime);
+        pipeline.add(new Document("$match", new Document("timestamp", timestampRange)
+                .append(propertyField, new Document("$exists", true))));
+
+        // Mean and M2 cannot be summed, the rollup buckets are merged by count, mean and M2 on the reader
+        if (queryOperation.equals(EventQueryOperation.STDDEV))
+            return queryMoments(collection, pipeline, propertyValue);
+
+        // Group rollup buckets into query buckets, or into a single bucket for scalar queries
+        Object groupId = null;
+        if (bucketSize > 0)
+            groupId = new Document("$subtract", Arrays.asList("$timestamp", new Document("$mod", Arrays.asList("$timestamp", bucketSize))));
+
+        Document group = new Document("_id", groupId);
+        group.append("COUNT", new Document("$sum", propertyValue + ".count"));
+        group.append("SUM", new Document("$sum", propertyValue + ".sum"));
+        group.append("MINIMUM", new Document("$min", propertyValue + ".min"));
+        group.append("MAXIMUM", new Document("$max", propertyValue + ".max"));
+        pipeline.add(new Document("$group", group));
+        pipeline.add(new Document("$sort", new Document("_id", 1)));
+
+        List<Document> buckets = new ArrayList<Document>();
+        MongoCursor<Document> cursor = collection.aggregate(pipeline).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+
+                long count = ((Number)doc.get("COUNT")).longValue();
+                Number sum = (Number)doc.get("SUM");
+                if (count == 0)
+                    continue;
+
+                buckets.add(new Document("timestamp", doc.get("_id"))
+                        .append("count", count)
+                        .append("sum", sum)
+                        .append("average", sum.doubleValue() / count)
+                        .append("minimum", doc.get("MINIMUM"))
+                        .append("maximum", doc.get("MAXIMUM")));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return buckets;
+    }
+
+
+    private List<Document> queryMoments(MongoCollection<Document> collection, List<Document> pipeline, String propertyValue) {
+        pipeline.add(new Document("$project", new Document("timestamp", 1)
+                .append("count", propertyValue + ".count")
+                .append("sum", propertyValue + ".sum")
+                .append("mean", propertyValue + ".mean")
+                .append("m2", propertyValue + ".m2")
+                .append("minimum", propertyValue + ".min")
+                .append("maximum", propertyValue + ".max")));
+
+        List<Document> buckets = new ArrayList<Document>();
+        MongoCursor<Document> cursor = collection.aggregate(pipeline).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+
+                long count = ((Number)doc.get("count")).longValue();
+                if (count == 0)
+                    continue;
+
+                buckets.add(new Document("timestamp", doc.get("timestamp"))
+                        .append("count", count)
+                        .append("sum", doc.get("sum"))
+                        .append("average", doc.get("mean"))
+                        .append("minimum", doc.get("minimum"))
+                        .append("maximum", doc.get("maximum"))
+                        .append("m2", doc.get("m2")));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return buckets;
+    }
+
+
+    private boolean hasMoments(List<Document> buckets) {
+        for (Document bucket : buckets) {
+            if (!(bucket.get("average") instanceof Number) || !(bucket.get("m2") instanceof Number))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private List<Document> mergeBuckets(List<Document> buckets) {
+        long count = 0;
+        Number sum = null;
+        Number minimum = null;
+        Number maximum = null;
+        long momentsCount = 0;
+        double mean = 0;
+        double m2 = 0;
+
+        for (Document bucket : buckets) {
+            long bucketCount = ((Number)bucket.get("count")).longValue();
+
+            // Chan's formula combines count, mean and M2 of the buckets without summing squares, buckets without numeric values have no M2
+            if (queryOperation.equals(EventQueryOperation.STDDEV) && (bucket.get("m2") instanceof Number)) {
+                double delta = ((Number)bucket.get("average")).doubleValue() - mean;
+                long total = momentsCount + bucketCount;
+                mean = mean + delta * bucketCount / total;
+                m2 = m2 + ((Number)bucket.get("m2")).doubleValue() + delta * delta * momentsCount * bucketCount / total;
+                momentsCount = total;
+            }
+
+            count = count + bucketCount;
+            sum = addNumber(sum, (Number)bucket.get("sum"));
+
+            Number bucketMinimum = (Number)bucket.get("minimum");
+            if ((minimum == null) || (bucketMinimum.doubleValue() < minimum.doubleValue()))
+                minimum = bucketMinimum;
+
+            Number bucketMaximum = (Number)bucket.get("maximum");
+            if ((maximum == null) || (bucketMaximum.doubleValue() > maximum.doubleValue()))
+                maximum = bucketMaximum;
+        }
+
+        // Create document list for query result
+        List<Document> foundDocuments = new ArrayList<Document>();
+        if (count == 0)
+            return foundDocuments;
+
+        if (queryOperation.equals(EventQueryOperation.AVERAGE))
+            foundDocuments.add(new Document("RESULT", sum.doubleValue() / count));
+        else if (queryOperation.equals(EventQueryOperation.MINUMUM))
+            foundDocuments.add(new Document("RESULT", minimum));
+        else if (queryOperation.equals(EventQueryOperation.MAXIMUM))
+            foundDocuments.add(new Document("RESULT", maximum));
+        else if (queryOperation.equals(EventQueryOperation.COUNT))
+            foundDocuments.add(new Document("RESULT", count));
+        else if (queryOperation.equals(EventQueryOperation.SUM))
+            foundDocuments.add(new Document("RESULT", sum));
+        else if (queryOperation.equals(EventQueryOperation.STDDEV) && (momentsCount > 0))
+            foundDocuments.add(new Document("RESULT", Math.sqrt(m2 / momentsCount)));
+
+        return foundDocuments;
+    }
+
+
+
+    private Number addNumber(Number current, Number value) {
+        // Sums of integer properties stay integers, as for queries on raw events
+        if (current == null)
+            return value;
+        else if ((current instanceof Long || current instanceof Integer) && (value instanceof Long || value instanceof Integer))
+            return current.longValue() + value.longValue();
+        else
+            return current.doubleValue() + value.doubleValue();
+    }
+
+}
@@ -17,15 +17,20 @@
  */
 package net.modelbased.proasense.storage.reader;
 
+import net.modelbased.proasense.storage.EventBucketLayout;
+import net.modelbased.proasense.storage.EventProperties;
+
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
@@ -36,9 +41,9 @@ import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Filters.lte;
 
 
-public class EventReaderMongoSync implements Callable {
+public class EventReaderMongoSync implements Callable<List<Document>> {
     private Properties mongoProperties;
-    private String mongoURL;
+    private MongoClient mongoClient;
     private String database;
     private EventQueryType queryType;
     private String collectionId;
@@ -47,10 +52,28 @@ public class EventReaderMongoSync implements Callable {
     private String propertyKey;
     private EventQueryOperation queryOperation;
     private String mapKey;
+    private long bucketSize;
+    private long bucketWindow;
+    private EventQueryPage page;
 
 
     public EventReaderMongoSync(String mongoURL, String database, EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, String mapKey) {
-        this.mongoURL = mongoURL;
+        this(MongoConnectionManager.getMongoClient(mongoURL), database, queryType, collectionId, startTime, endTime, propertyKey, queryOperation, mapKey);
+    }
+
+
+    public EventReaderMongoSync(MongoClient mongoClient, String database, EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, String mapKey) {
+        this(mongoClient, database, queryType, collectionId, startTime, endTime, propertyKey, queryOperation, mapKey, 0, 0);
+    }
+
+
+    public EventReaderMongoSync(MongoClient mongoClient, String database, EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, String mapKey, long bucketSize, long bucketWindow) {
+        this(mongoClient, database, queryType, collectionId, startTime, endTime, propertyKey, queryOperation, mapKey, bucketSize, bucketWindow, null);
+    }
+
+
+    public EventReaderMongoSync(MongoClient mongoClient, String database, EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, String mapKey, long bucketSize, long bucketWindow, EventQueryPage page) {
+        this.mongoClient = mongoClient;
         this.database = database;
         this.queryType = queryType;
         this.collectionId = collectionId;
@@ -59,646 +82,342 @@ public class EventReaderMongoSync implements Callable {
         this.propertyKey = propertyKey;
         this.queryOperation = queryOperation;
         this.mapKey = mapKey;
+        this.bucketSize = bucketSize;
+        this.bucketWindow = bucketWindow;
+        this.page = page;
     }
 
 
-    public List<Document> call() {
-        // Connect to MongoDB database
-        MongoClient mongoClient = new MongoClient(new MongoClientURI(this.mongoURL));
-        MongoDatabase database = mongoClient.getDatabase(this.database);
+    public MongoCursor<Document> iterator() {
+        // Get MongoDB database from shared client
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
 
         MongoCollection<Document> collection = database.getCollection(this.collectionId);
 
-        // Create document list for query result
-        List<Document> foundDocuments = new ArrayList<Document>();
+        // Open cursor for default queries, documents are fetched in batches while iterating
+        if (isBucketLayout())
+            return collection.aggregate(createDefaultStages(collection)).allowDiskUse(true).iterator();
+        else
+            return createDefaultFind(collection, Document.class).iterator();
+    }
 
-        if (queryType.equals(EventQueryType.SIMPLE) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
-        }
+    public MongoCursor<RawBsonDocument> rawIterator() {
+        // Get MongoDB database from shared client
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
 
-        if (queryType.equals(EventQueryType.SIMPLE) && queryOperation.equals(EventQueryOperation.AVERAGE)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        MongoCollection<Document> collection = database.getCollection(this.collectionId);
 
-            long resultAverageLong = 0;
-            double resultAverageDouble = 0;
-            long collectionSize = 0;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                collectionSize++;
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    Long value = (Long)eventProps.get(this.propertyKey);
-                    resultAverageLong = resultAverageLong + value;
-                }
-                else if (doubleProperty) {
-                    Double value = (Double)eventProps.get(this.propertyKey);
-                    resultAverageDouble = resultAverageDouble + value;
-                    doubleProperty = true;
-                }
-            }
+        // Raw documents are not decoded, the serialized event or the structured fields are chosen per document while streaming
+        if (isBucketLayout())
+            return collection.aggregate(createDefaultStages(collection), RawBsonDocument.class).allowDiskUse(true).iterator();
+        else
+            return createDefaultFind(collection, RawBsonDocument.class).iterator();
+    }
 
-            if (longProperty) {
-                Long resultAverage = resultAverageLong / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                Double resultAverage = resultAverageDouble / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-        }
 
-        if (queryType.equals(EventQueryType.SIMPLE) && queryOperation.equals(EventQueryOperation.MAXIMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+    public String getContinuationToken(List<Document> documents) {
+        // Token is derived from the returned page itself, no separate query is needed
+        if (this.page == null)
+            return null;
 
-            long resultMaximumLong = Long.MIN_VALUE;
-            double resultMaximumDouble = Double.MIN_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumLong)
-                        resultMaximumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumDouble)
-                        resultMaximumDouble = value;
-                }
-            }
+        return this.page.createToken(documents);
+    }
 
-            if (longProperty) {
-                Long resultMaximum = resultMaximumLong;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                Double resultMaximum = resultMaximumDouble;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-        }
 
-        if (queryType.equals(EventQueryType.SIMPLE) && queryOperation.equals(EventQueryOperation.MINUMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+    public String findContinuationToken() {
+        // Streamed pages look up their last event before streaming, the page is then bounded by that event and its token is sent as header
+        if ((this.page == null) || (this.page.getPageSize() == 0))
+            return null;
 
-            long resultMinimumLong = Long.MAX_VALUE;
-            double resultMinimumDouble = Double.MAX_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumLong)
-                        resultMinimumLong = value;
-                }
-                else if (doubleProperty) {
-                    Double value = (Double)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumDouble)
-                        resultMinimumDouble = value;
-                }
-            }
+        // Get MongoDB database from shared client
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
 
-            if (longProperty) {
-                long resultMinimum = resultMinimumLong;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMinimum = resultMinimumDouble;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
+        MongoCollection<Document> collection = database.getCollection(this.collectionId);
+
+        // Only the sort keys are read, the skip within one page is served from the timestamp and id index
+        Document endKey;
+        if (isBucketLayout()) {
+            List<Document> pipeline = createDefaultStages(collection);
+            pipeline.add(new Document("$skip", this.page.getPageSize() - 1));
+            pipeline.add(new Document("$project", this.page.getKeyProjection(true)));
+            endKey = collection.aggregate(pipeline).allowDiskUse(true).first();
         }
+        else
+            endKey = createDefaultFind(collection, Document.class).skip(this.page.getPageSize() - 1).limit(1).projection(this.page.getKeyProjection(false)).first();
 
-        if (queryType.equals(EventQueryType.DERIVED) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
+        if (endKey == null)
+            return null;
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
-        }
+        this.page.setEndKey(endKey);
 
-        if (queryType.equals(EventQueryType.DERIVED) && queryOperation.equals(EventQueryOperation.AVERAGE)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        return EventQueryPage.createKeyToken(endKey);
+    }
 
-            long resultAverageLong = 0;
-            double resultAverageDouble = 0;
-            long collectionSize = 0;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                collectionSize++;
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    Long value = (Long)eventProps.get(this.propertyKey);
-                    resultAverageLong = resultAverageLong + value;
-                }
-                else if (doubleProperty) {
-                    Double value = (Double)eventProps.get(this.propertyKey);
-                    resultAverageDouble = resultAverageDouble + value;
-                }
-            }
 
-            if (longProperty) {
-                Long resultAverage = resultAverageLong / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                Double resultAverage = resultAverageDouble / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-        }
+    private <T> FindIterable<T> createDefaultFind(MongoCollection<Document> collection, Class<T> documentClass) {
+        FindIterable<T> find = collection.find(createDefaultFilter(), documentClass);
+        if (this.page == null)
+            return find;
 
-        if (queryType.equals(EventQueryType.DERIVED) && queryOperation.equals(EventQueryOperation.MAXIMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        // Paged queries are sorted on the keyset index and continue after the last event of the previous page without skipping
+        return find.sort(this.page.getSort(false)).limit(this.page.getLimit());
+    }
 
-            long resultMaximumLong = Long.MIN_VALUE;
-            double resultMaximumDouble = Double.MIN_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumLong)
-                        resultMaximumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumDouble)
-                        resultMaximumDouble = value;
-                    doubleProperty = true;
-                }
-            }
 
-            if (longProperty) {
-                long resultMaximum = resultMaximumLong;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMaximum = resultMaximumDouble;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-        }
+    private Bson createDefaultFilter() {
+        Bson filter;
+        if (queryType.equals(EventQueryType.KPI))
+            filter = and(gte("timestamp", this.startTime), lte("timestamp", this.endTime), in("eventName", this.propertyKey));
+        else
+            filter = and(gte("timestamp", this.startTime), lte("timestamp", this.endTime));
 
-        if (queryType.equals(EventQueryType.DERIVED) && queryOperation.equals(EventQueryOperation.MINUMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        if (this.page == null)
+            return filter;
 
-            long resultMinimumLong = Long.MAX_VALUE;
-            double resultMinimumDouble = Double.MAX_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumLong)
-                        resultMinimumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumDouble)
-                        resultMinimumDouble = value;
-                }
-            }
+        return and(filter, this.page.getFilter());
+    }
 
-            if (longProperty) {
-                long resultMinimum = resultMinimumLong;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMinimum = resultMinimumDouble;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
-        }
 
-        if (queryType.equals(EventQueryType.KPI) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime), in("eventName", this.propertyKey)));
+    private List<Document> createDefaultStages(MongoCollection<Document> collection) {
+        long windowStart = this.startTime - (this.startTime % this.bucketWindow);
+        long windowEnd = this.endTime;
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
+        // Paged queries only unwind and sort the buckets of the windows covering the page
+        if (this.page != null) {
+            long lastTimestamp = this.page.getLastTimestamp();
+            if (this.page.hasContinuation() && this.page.isDescending())
+                windowEnd = Math.min(windowEnd, lastTimestamp);
+            else if (this.page.hasContinuation())
+                windowStart = Math.max(windowStart, lastTimestamp - (lastTimestamp % this.bucketWindow));
+
+            if (this.page.getPageSize() > 0) {
+                long pageWindow = findPageWindow(collection, windowStart, windowEnd);
+                if (this.page.isDescending())
+                    windowStart = Math.max(windowStart, pageWindow);
+                else
+                    windowEnd = Math.min(windowEnd, pageWindow);
             }
         }
 
-        if (queryType.equals(EventQueryType.PREDICTED) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
+        List<Document> pipeline = createBucketStages(collection, windowStart, windowEnd);
+        Document timestampRange = new Document("$gte", this.startTime).append("$lte", this.endTime);
+        pipeline.add(new Document("$match", new Document("timestamp", timestampRange)));
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
+        if (this.page != null) {
+            pipeline.add(new Document("$match", this.page.getFilter()));
+            pipeline.add(new Document("$sort", this.page.getSort(true)));
+            if (this.page.getLimit() > 0)
+                pipeline.add(new Document("$limit", this.page.getLimit()));
         }
 
-        if (queryType.equals(EventQueryType.PREDICTED) && queryOperation.equals(EventQueryOperation.AVERAGE)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        return pipeline;
+    }
+
 
-            long resultAverageLong = 0;
-            double resultAverageDouble = 0;
-            long collectionSize = 0;
-            MongoCursor<Document> cursor = it.iterator();
+    private long findPageWindow(MongoCollection<Document> collection, long windowStart, long windowEnd) {
+        // Bucket event counts are summed in page order from the bucket index, without reading the events
+        int direction = this.page.isDescending() ? -1 : 1;
+        long pageEvents = this.page.getPageSize();
+        long events = 0;
+        Long firstWindow = null;
+
+        MongoCursor<Document> cursor = collection.find(and(gte("timestamp", windowStart), lte("timestamp", windowEnd)))
+                .sort(new Document("timestamp", direction))
+                .projection(new Document("timestamp", 1).append("count", 1))
+                .iterator();
+        try {
             while (cursor.hasNext()) {
-                collectionSize++;
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    resultAverageLong = resultAverageLong + value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    resultAverageDouble = resultAverageDouble + value;
-                }
-            }
+                Document bucket = cursor.next();
+                long window = ((Number)bucket.get("timestamp")).longValue();
 
-            if (longProperty) {
-                long resultAverage = resultAverageLong / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultAverage = resultAverageDouble / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
+                // The first window may hold events before the page, it is always included but not counted
+                if (firstWindow == null)
+                    firstWindow = window;
+                else if (window != firstWindow.longValue())
+                    events = events + ((Number)bucket.get("count")).longValue();
+
+                // All buckets of the window covering the last event of the page are included
+                if (events >= pageEvents)
+                    return window;
             }
+        } finally {
+            cursor.close();
         }
 
-        if (queryType.equals(EventQueryType.PREDICTED) && queryOperation.equals(EventQueryOperation.MAXIMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        return this.page.isDescending() ? windowStart : windowEnd;
+    }
 
-            long resultMaximumLong = Long.MIN_VALUE;
-            double resultMaximumDouble = Double.MIN_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumLong)
-                        resultMaximumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumDouble)
-                        resultMaximumDouble = value;
-                }
-            }
 
-            if (longProperty) {
-                long resultMaximum = resultMaximumLong;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMaximum = resultMaximumDouble;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-        }
+    public List<Document> call() {
+        // Get MongoDB database from shared client
+        MongoDatabase database = this.mongoClient.getDatabase(this.database);
 
-        if (queryType.equals(EventQueryType.PREDICTED) && queryOperation.equals(EventQueryOperation.MINUMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        MongoCollection<Document> collection = database.getCollection(this.collectionId);
 
-            long resultMinimumLong = Long.MAX_VALUE;
-            double resultMinimumDouble = Double.MAX_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumLong)
-                        resultMinimumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Long)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumDouble)
-                        resultMinimumDouble = value;
+        // Create document list for query result
+        List<Document> foundDocuments = new ArrayList<Document>();
+
+        if (queryOperation.equals(EventQueryOperation.DEFAULT)) {
+            MongoCursor<Document> cursor = iterator();
+            try {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    foundDocuments.add(doc);
                 }
+            } finally {
+                cursor.close();
             }
-
-            if (longProperty) {
-                long resultMinimum = resultMinimumLong;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
+        }
+        else if (queryOperation.equals(EventQueryOperation.DOWNSAMPLE)) {
+            // Aggregate on server, one result document is returned per time bucket
+            MongoCursor<Document> cursor = collection.aggregate(createPipeline()).iterator();
+            try {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    foundDocuments.add(new Document("timestamp", doc.get("_id"))
+                            .append("count", doc.get("COUNT"))
+                            .append("sum", doc.get("SUM"))
+                            .append("average", doc.get("AVERAGE"))
+                            .append("minimum", doc.get("MINIMUM"))
+                            .append("maximum", doc.get("MAXIMUM"))
+                            .append("m2", getM2(doc)));
+                }
+            } finally {
+                cursor.close();
             }
-            else if (doubleProperty) {
-                double resultMinimum = resultMinimumDouble;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
+        }
+        else {
+            // Aggregate on server, only the result document is returned
+            MongoCursor<Document> cursor = collection.aggregate(createPipeline()).iterator();
+            try {
+                if (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    foundDocuments.add(new Document("RESULT", doc.get("RESULT")));
+                }
+            } finally {
+                cursor.close();
             }
         }
 
-        if (queryType.equals(EventQueryType.ANOMALY) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
+        return foundDocuments;
+    }
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
-        }
 
-        if (queryType.equals(EventQueryType.RECOMMENDATION) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
+    private List<Document> createPipeline() {
+        // Event property keys are stored with "." replaced by "_"
+        String propertyField = "eventProperties." + this.propertyKey.replace(".", "_");
+        String propertyValue = "$" + propertyField;
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
-        }
+        List<Document> pipeline = createBucketStages();
 
-        if (queryType.equals(EventQueryType.RECOMMENDATION) && queryOperation.equals(EventQueryOperation.AVERAGE)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+        Document timestampRange = new Document("$gte", this.startTime).append("$lte", this.endTime);
+        pipeline.add(new Document("$match", new Document("timestamp", timestampRange)
+                .append(propertyField, new Document("$exists", true))));
 
-            long resultAverageLong = 0;
-            double resultAverageDouble = 0;
-            long collectionSize = 0;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                collectionSize++;
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    resultAverageLong = resultAverageLong + value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    resultAverageDouble = resultAverageDouble + value;
-                }
-            }
+        if (queryOperation.equals(EventQueryOperation.FIRST) || queryOperation.equals(EventQueryOperation.LAST))
+            pipeline.add(new Document("$sort", new Document("timestamp", 1)));
 
-            if (longProperty) {
-                long resultAverage = resultAverageLong / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultAverage = resultAverageDouble / collectionSize;
-                Document resultDoc = new Document("RESULT", resultAverage);
-                foundDocuments.add(resultDoc);
-            }
+        Document group = new Document("_id", null);
+        if (queryOperation.equals(EventQueryOperation.DOWNSAMPLE)) {
+            // Group events by start of time bucket
+            Document bucketStart = new Document("$subtract", Arrays.asList("$timestamp", new Document("$mod", Arrays.asList("$timestamp", this.bucketSize))));
+            group = new Document("_id", bucketStart);
+            group.append("COUNT", new Document("$sum", 1));
+            group.append("SUM", new Document("$sum", propertyValue));
+            group.append("AVERAGE", new Document("$avg", propertyValue));
+            group.append("MINIMUM", new Document("$min", propertyValue));
+            group.append("MAXIMUM", new Document("$max", propertyValue));
+            group.append("STDDEV", new Document("$stdDevPop", propertyValue));
         }
+        else if (queryOperation.equals(EventQueryOperation.AVERAGE))
+            group.append("RESULT", new Document("$avg", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.MINUMUM))
+            group.append("RESULT", new Document("$min", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.MAXIMUM))
+            group.append("RESULT", new Document("$max", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.COUNT))
+            group.append("RESULT", new Document("$sum", 1));
+        else if (queryOperation.equals(EventQueryOperation.SUM))
+            group.append("RESULT", new Document("$sum", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.FIRST))
+            group.append("RESULT", new Document("$first", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.LAST))
+            group.append("RESULT", new Document("$last", propertyValue));
+        else if (queryOperation.equals(EventQueryOperation.STDDEV))
+            // Population standard deviation computed by the server without summing squares (requires MongoDB 3.2)
+            group.append("RESULT", new Document("$stdDevPop", propertyValue));
+        pipeline.add(new Document("$group", group));
+
+        if (queryOperation.equals(EventQueryOperation.DOWNSAMPLE))
+            pipeline.add(new Document("$sort", new Document("_id", 1)));
+
+        return pipeline;
+    }
 
-        if (queryType.equals(EventQueryType.RECOMMENDATION) && queryOperation.equals(EventQueryOperation.MAXIMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
 
-            long resultMaximumLong = Long.MIN_VALUE;
-            double resultMaximumDouble = Double.MIN_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumLong)
-                        resultMaximumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value > resultMaximumDouble)
-                        resultMaximumDouble = value;
-                }
-            }
+    private boolean isBucketLayout() {
+        return queryType.equals(EventQueryType.SIMPLE) && (this.bucketWindow > 0);
+    }
 
-            if (longProperty) {
-                long resultMaximum = resultMaximumLong;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMaximum = resultMaximumDouble;
-                Document resultDoc = new Document("RESULT", resultMaximum);
-                foundDocuments.add(resultDoc);
-            }
-        }
 
-        if (queryType.equals(EventQueryType.RECOMMENDATION) && queryOperation.equals(EventQueryOperation.MINUMUM)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
-
-            boolean longProperty = false;
-            boolean doubleProperty = false;
-            MongoCursor<Document> firstCursor = it.iterator();
-            if (firstCursor.hasNext()) {
-                Document doc = firstCursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                Object valueObj = eventProps.get(this.propertyKey);
-                if (valueObj instanceof Long)
-                    longProperty = true;
-                else if (valueObj instanceof Double)
-                    doubleProperty = true;
-            }
+    private List<Document> createBucketStages() {
+        if (!isBucketLayout())
+            return new ArrayList<Document>();
 
-            long resultMinimumLong = Long.MAX_VALUE;
-            double resultMinimumDouble = Double.MAX_VALUE;
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                Document eventProps = (Document)doc.get("eventProperties");
-                if (longProperty) {
-                    long value = (Long)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumLong)
-                        resultMinimumLong = value;
-                }
-                else if (doubleProperty) {
-                    double value = (Double)eventProps.get(this.propertyKey);
-                    if (value < resultMinimumDouble)
-                        resultMinimumDouble = value;
-                }
-            }
+        // Aggregations only read the column of the queried property, buckets without it are skipped
+        String column = this.propertyKey.replace(".", "_");
+        long windowStart = this.startTime - (this.startTime % this.bucketWindow);
+        Document windowRange = new Document("$gte", windowStart).append("$lte", this.endTime);
 
-            if (longProperty) {
-                long resultMinimum = resultMinimumLong;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
-            else if (doubleProperty) {
-                double resultMinimum = resultMinimumDouble;
-                Document resultDoc = new Document("RESULT", resultMinimum);
-                foundDocuments.add(resultDoc);
-            }
-        }
+        return createBucketStages(new Document("timestamp", windowRange).append(EventBucketLayout.COLUMNS_KEY, column), Arrays.asList(column));
+    }
 
-        if (queryType.equals(EventQueryType.FEEDBACK) && queryOperation.equals(EventQueryOperation.DEFAULT)) {
-            FindIterable<Document> it = collection.find(and(gte("timestamp", this.startTime), lte("timestamp", this.endTime)));
 
-            MongoCursor<Document> cursor = it.iterator();
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                foundDocuments.add(doc);
-            }
+    private List<Document> createBucketStages(MongoCollection<Document> collection, long windowStart, long windowEnd) {
+        // Events are rebuilt from all columns found in the buckets of the windows
+        Document windowRange = new Document("$gte", windowStart).append("$lte", windowEnd);
+        Document bucketFilter = new Document("timestamp", windowRange);
+        List<String> columns = collection.distinct(EventBucketLayout.COLUMNS_KEY, bucketFilter, String.class).into(new ArrayList<String>());
+
+        return createBucketStages(bucketFilter, columns);
+    }
+
+
+    private List<Document> createBucketStages(Document bucketFilter, List<String> columns) {
+        List<Document> stages = new ArrayList<Document>();
+
+        // Select buckets by window start, then unwind the timestamps into one document per event with its position in the bucket (requires MongoDB 3.2)
+        stages.add(new Document("$match", bucketFilter));
+        stages.add(new Document("$unwind", new Document("path", "$" + EventBucketLayout.TIMESTAMPS_KEY).append("includeArrayIndex", EventQueryPage.EVENT_INDEX_KEY)));
+
+        // Property values and the serialized event are read from the columns at the position of the event, columns missing in a bucket read as null
+        Document projection = new Document("timestamp", "$" + EventBucketLayout.TIMESTAMPS_KEY)
+                .append(EventQueryPage.EVENT_INDEX_KEY, 1)
+                .append("sensorId", 1);
+        Document eventProperties = new Document();
+        for (String column : columns) {
+            Document value = new Document("$arrayElemAt", Arrays.asList("$" + EventBucketLayout.getColumnField(column), "$" + EventQueryPage.EVENT_INDEX_KEY));
+            if (column.equals(EventProperties.STORAGE_SERIALIZED_EVENT_KEY))
+                projection.append(column, value);
+            else
+                eventProperties.append(column, value);
         }
+        if (!eventProperties.isEmpty())
+            projection.append("eventProperties", eventProperties);
+        stages.add(new Document("$project", projection));
 
-        mongoClient.close();
+        return stages;
+    }
 
-        return foundDocuments;
+
+    private Double getM2(Document doc) {
+        // Sum of squared deviations from the bucket mean, buckets are merged with the rollup tiers by count, mean and M2
+        Number stddev = (Number)doc.get("STDDEV");
+        if (stddev == null)
+            return null;
+
+        return stddev.doubleValue() * stddev.doubleValue() * ((Number)doc.get("COUNT")).doubleValue();
     }
 
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import net.modelbased.proasense.storage.EventConverter;
+
+import com.mongodb.client.MongoCursor;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TJSONProtocol;
+import org.bson.Document;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+
+public class EventStreamingOutput<T extends TBase> implements StreamingOutput {
+    private Class<T> eventType;
+    private Callable<MongoCursor<Document>> cursorQuery;
+    private EventQueryExecutor queryExecutor;
+
+
+    public EventStreamingOutput(Class<T> eventType, Callable<MongoCursor<Document>> cursorQuery, EventQueryExecutor queryExecutor) {
+        this.eventType = eventType;
+        this.cursorQuery = cursorQuery;
+        this.queryExecutor = queryExecutor;
+    }
+
+
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        OutputStream stream = new BufferedOutputStream(output);
+        TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
+        long deadline = System.currentTimeMillis() + queryExecutor.getStreamTimeout();
+
+        // The stream permit and cursor are only taken once the response is written, a response never written holds neither
+        MongoCursor<Document> cursor = queryExecutor.openStream(cursorQuery);
+
+        // Write events as a JSON array while iterating the cursor, the cursor and stream permit are released however the stream ends
+        try {
+            stream.write('[');
+            boolean isFirst = true;
+            while (cursor.hasNext()) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new WebApplicationException(Response.status(504).entity("Storage reader stream timed out").build());
+
+                T event = new EventConverter<T>(eventType, cursor.next()).getEvent();
+
+                if (!isFirst)
+                    stream.write(',');
+                stream.write(serializer.serialize(event));
+                isFirst = false;
+            }
+            stream.write(']');
+            stream.flush();
+        } catch (TException e) {
+            // Abort the response, a closed array would read as a complete result
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        } finally {
+            cursor.close();
+            queryExecutor.releaseStream();
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.reader;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+public class MongoConnectionManager {
+    private static Map<String, MongoClient> mongoClients = new HashMap<String, MongoClient>();
+
+
+    private MongoConnectionManager() {
+    }
+
+
+    public static MongoClient getMongoClient(String mongoURL) {
+        return getMongoClient(mongoURL, new Properties());
+    }
+
+
+    public static synchronized MongoClient getMongoClient(String mongoURL, Properties serverProperties) {
+        MongoClient mongoClient = mongoClients.get(mongoURL);
+
+        if (mongoClient == null) {
+            mongoClient = new MongoClient(new MongoClientURI(mongoURL, createMongoClientOptions(serverProperties)));
+            mongoClients.put(mongoURL, mongoClient);
+        }
+
+        return mongoClient;
+    }
+
+
+    public static synchronized void close() {
+        for (MongoClient mongoClient : mongoClients.values())
+            mongoClient.close();
+
+        mongoClients.clear();
+    }
+
+
+    private static MongoClientOptions.Builder createMongoClientOptions(Properties serverProperties) {
+        // MongoDB connection pool configuration properties
+        int NO_POOL_MAXSIZE = new Integer(serverProperties.getProperty("proasense.storage.mongodb.pool.maxsize", "100")).intValue();
+        int NO_POOL_MINSIZE = new Integer(serverProperties.getProperty("proasense.storage.mongodb.pool.minsize", "0")).intValue();
+        int NO_POOL_MAXIDLETIME = new Integer(serverProperties.getProperty("proasense.storage.mongodb.pool.maxidletime", "60000")).intValue();
+        int NO_POOL_MAXLIFETIME = new Integer(serverProperties.getProperty("proasense.storage.mongodb.pool.maxlifetime", "0")).intValue();
+        int NO_POOL_MAXWAITTIME = new Integer(serverProperties.getProperty("proasense.storage.mongodb.pool.maxwaittime", "120000")).intValue();
+
+        return MongoClientOptions.builder()
+                .connectionsPerHost(NO_POOL_MAXSIZE)
+                .minConnectionsPerHost(NO_POOL_MINSIZE)
+                .maxConnectionIdleTime(NO_POOL_MAXIDLETIME)
+                .maxConnectionLifeTime(NO_POOL_MAXLIFETIME)
+                .maxWaitTime(NO_POOL_MAXWAITTIME);
+    }
+
+}
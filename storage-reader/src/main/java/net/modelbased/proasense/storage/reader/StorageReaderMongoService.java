@@ -17,7 +17,9 @@
  */
 package net.modelbased.proasense.storage.reader;
 
+import net.modelbased.proasense.storage.EventBucketLayout;
 import net.modelbased.proasense.storage.EventConverter;
+import net.modelbased.proasense.storage.EventRollup;
 
 import eu.proasense.internal.AnomalyEvent;
 import eu.proasense.internal.DerivedEvent;
@@ -26,17 +28,29 @@ import eu.proasense.internal.PredictedEvent;
 import eu.proasense.internal.RecommendationEvent;
 import eu.proasense.internal.SimpleEvent;
 
-import org.apache.thrift.TSerializer;
-import org.apache.thrift.protocol.TJSONProtocol;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -45,8 +59,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
 @Path("/")
@@ -54,6 +66,12 @@ public class StorageReaderMongoService {
     private Properties serverProperties;
     private String MONGODB_URL;
     private String MONGODB_DATABASE;
+    private MongoClient mongoClient;
+    private EventQueryExecutor queryExecutor;
+    private EventQueryCache queryCache;
+    private List<EventRollup> rollups;
+    private long bucketWindow;
+    private int maxLimit;
 
 
     public StorageReaderMongoService() {
@@ -65,73 +83,71 @@ public class StorageReaderMongoService {
 //        this.MONGODB_URL = System.getenv("MONGODB_URL");
 //        serverProperties.setProperty("proasense.storage.mongodb.url", this.MONGODB_URL);
         this.MONGODB_DATABASE = serverProperties.getProperty("proasense.storage.mongodb.database");
+
+        // Shared MongoDB client for all event readers
+        this.mongoClient = MongoConnectionManager.getMongoClient(this.MONGODB_URL, serverProperties);
+
+        // Shared bounded executor for all event queries
+        this.queryExecutor = EventQueryExecutor.getInstance(serverProperties);
+
+        // Shared cache for aggregate query results of historical time ranges
+        this.queryCache = EventQueryCache.getInstance(serverProperties);
+
+        // Rollup tiers maintained by the storage writer
+        this.rollups = EventRollup.createRollups(serverProperties.getProperty("proasense.storage.reader.rollups", ""));
+
+        // Simple event layout written by the storage writer
+        String layout = serverProperties.getProperty("proasense.storage.reader.layout", EventBucketLayout.LAYOUT_EVENT);
+        if (layout.equals(EventBucketLayout.LAYOUT_BUCKET))
+            this.bucketWindow = EventRollup.parseBucketSize(serverProperties.getProperty("proasense.storage.reader.bucket.window", "1m"));
+
+        // Maximum number of events returned per page by default queries, zero means no limit
+        this.maxLimit = new Integer(serverProperties.getProperty("proasense.storage.reader.limit", "0")).intValue();
     }
 
 
     @GET
     @Path("/query/simple/default")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultSimpleEvents(
             @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
-
-            for (Document doc : queryResult) {
-                SimpleEvent event = new EventConverter<SimpleEvent>(SimpleEvent.class, doc).getEvent();
-
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, bucketWindow, page);
 
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(SimpleEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/simple/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultSimpleEvents2(
             @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, bucketWindow, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<SimpleEvent> responseResult = new ArrayList<SimpleEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<SimpleEvent>(SimpleEvent.class, doc).getEvent());
             }
@@ -139,10 +155,9 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
@@ -153,150 +168,205 @@ public class StorageReaderMongoService {
             @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.AVERAGE, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.AVERAGE, headers);
+    }
 
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        String result = queryResult.get(0).get("RESULT").toString();
+    @GET
+    @Path("/query/simple/maximum")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryMaximumSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "simple." + sensorId;
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MAXIMUM, headers);
     }
 
 
     @GET
-    @Path("/query/simple/maximum")
+    @Path("/query/simple/minimum")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response queryMaximumSimpleEvents(
+    public Response queryMinimumSimpleEvents(
             @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MAXIMUM, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MINUMUM, headers);
+    }
 
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        String result = queryResult.get(0).get("RESULT").toString();
+    @GET
+    @Path("/query/simple/count")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryCountSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "simple." + sensorId;
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.COUNT, headers);
     }
 
 
     @GET
-    @Path("/query/simple/minimum")
+    @Path("/query/simple/sum")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response queryMinimumSimpleEvents(
+    public Response querySumSimpleEvents(
             @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MINUMUM, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.SUM, headers);
+    }
 
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        String result = queryResult.get(0).get("RESULT").toString();
+    @GET
+    @Path("/query/simple/stddev")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryStddevSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "simple." + sensorId;
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.STDDEV, headers);
     }
 
 
     @GET
-    @Path("/query/derived/default")
+    @Path("/query/simple/first")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response queryDefaultDerivedEvents(
-            @QueryParam("componentId") String componentId,
+    public Response queryFirstSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
-        String collectionId = "derived." + componentId;
+        String collectionId = "simple." + sensorId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.FIRST, headers);
+    }
 
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
 
-            for (Document doc : queryResult) {
-                DerivedEvent event = new EventConverter<DerivedEvent>(DerivedEvent.class, doc).getEvent();
+    @GET
+    @Path("/query/simple/last")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryLastSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "simple." + sensorId;
 
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
+        return queryAggregate(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.LAST, headers);
+    }
 
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
+    @GET
+    @Path("/query/simple/downsample")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryDownsampleSimpleEvents(
+            @QueryParam("sensorId") String sensorId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @QueryParam("bucket") String bucket,
+            @Context HttpHeaders headers)
+    {
+        // Downsampled buckets are only available as JSON
+        checkJsonAcceptable(headers);
+
+        String collectionId = "simple." + sensorId;
+        long bucketSize = parseBucketSize(bucket);
+
+        List<Document> queryResult = executeAggregateQuery(EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.DOWNSAMPLE, bucketSize);
+        JSONArray responseResult = new JSONArray();
+        for (Document doc : queryResult) {
+            JSONObject bucketResult = new JSONObject();
+            bucketResult.put("timestamp", doc.get("timestamp"));
+            bucketResult.put("count", doc.get("count"));
+            bucketResult.put("sum", doc.get("sum"));
+            bucketResult.put("average", doc.get("average"));
+            bucketResult.put("minimum", doc.get("minimum"));
+            bucketResult.put("maximum", doc.get("maximum"));
+            responseResult.put(bucketResult);
+        }
         String result = responseResult.toString();
 
         // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return Response.status(200).type(MediaType.APPLICATION_JSON_TYPE).entity(result).build();
+    }
+
+
+    @GET
+    @Path("/query/derived/default")
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
+    public Response queryDefaultDerivedEvents(
+            @QueryParam("componentId") String componentId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "derived." + componentId;
+
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
+
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(DerivedEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/derived/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultDerivedEvents2(
             @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<DerivedEvent> responseResult = new ArrayList<DerivedEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<DerivedEvent>(DerivedEvent.class, doc).getEvent());
             }
@@ -304,10 +374,9 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
@@ -318,25 +387,12 @@ public class StorageReaderMongoService {
             @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.AVERAGE, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        String result = queryResult.get(0).get("RESULT").toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.AVERAGE, headers);
     }
 
 
@@ -347,25 +403,12 @@ public class StorageReaderMongoService {
             @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MAXIMUM, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        String result = queryResult.get(0).get("RESULT").toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MAXIMUM, headers);
     }
 
 
@@ -376,136 +419,158 @@ public class StorageReaderMongoService {
             @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
             @QueryParam("endTime") long endTime,
-            @QueryParam("propertyKey") String propertyKey)
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
         String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MINUMUM, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.MINUMUM, headers);
+    }
 
-        List<Document> queryResult = null;
-        try {
-            queryResult = query.call();
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        String result = queryResult.get(0).get("RESULT").toString();
+    @GET
+    @Path("/query/derived/count")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryCountDerivedEvents(
+            @QueryParam("componentId") String componentId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "derived." + componentId;
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.COUNT, headers);
     }
 
 
     @GET
-    @Path("/query/kpi/default")
+    @Path("/query/derived/sum")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response queryDefaultKPIEvents(
-//            @QueryParam("componentId") String componentId,
-            @QueryParam("kpiId") String kpiId,
+    public Response querySumDerivedEvents(
+            @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
-        String collectionId = "derived." + "KPI";
+        String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.KPI, collectionId, startTime, endTime, kpiId, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.SUM, headers);
+    }
 
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
 
-            for (Document doc : queryResult) {
-                DerivedEvent event = new EventConverter<DerivedEvent>(DerivedEvent.class, doc).getEvent();
+    @GET
+    @Path("/query/derived/stddev")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryStddevDerivedEvents(
+            @QueryParam("componentId") String componentId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "derived." + componentId;
 
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.STDDEV, headers);
+    }
 
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
 
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
+    @GET
+    @Path("/query/derived/first")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryFirstDerivedEvents(
+            @QueryParam("componentId") String componentId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "derived." + componentId;
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.FIRST, headers);
     }
 
 
     @GET
-    @Path("/query/predicted/default")
+    @Path("/query/derived/last")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response queryDefaultPredictedEvents(
+    public Response queryLastDerivedEvents(
+            @QueryParam("componentId") String componentId,
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("propertyKey") String propertyKey,
+            @Context HttpHeaders headers)
     {
-        String collectionId = "predicted.system";
+        String collectionId = "derived." + componentId;
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.PREDICTED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        return queryAggregate(EventQueryType.DERIVED, collectionId, startTime, endTime, propertyKey, EventQueryOperation.LAST, headers);
+    }
 
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
 
-            for (Document doc : queryResult) {
-                PredictedEvent event = new EventConverter<PredictedEvent>(PredictedEvent.class, doc).getEvent();
+    @GET
+    @Path("/query/kpi/default")
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
+    public Response queryDefaultKPIEvents(
+//            @QueryParam("componentId") String componentId,
+            @QueryParam("kpiId") String kpiId,
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "derived." + "KPI";
 
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.KPI, collectionId, startTime, endTime, kpiId, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(DerivedEvent.class, query, headers);
+    }
 
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+    @GET
+    @Path("/query/predicted/default")
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
+    public Response queryDefaultPredictedEvents(
+            @QueryParam("startTime") long startTime,
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
+    {
+        String collectionId = "predicted.system";
+
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.PREDICTED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
+
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(PredictedEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/predicted/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultPredictedEvents2(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "predicted.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.PREDICTED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.PREDICTED, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<PredictedEvent> responseResult = new ArrayList<PredictedEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<PredictedEvent>(PredictedEvent.class, doc).getEvent());
             }
@@ -513,75 +578,52 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
     @GET
     @Path("/query/anomaly/default")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultAnomalyEvents(
         @QueryParam("startTime") long startTime,
-        @QueryParam("endTime") long endTime)
+        @QueryParam("endTime") long endTime,
+        @QueryParam("limit") int limit,
+        @QueryParam("order") String order,
+        @QueryParam("continuation") String continuation,
+        @Context HttpHeaders headers)
     {
         String collectionId = "anomaly.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.ANOMALY, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
-
-            for (Document doc : queryResult) {
-                AnomalyEvent event = new EventConverter<AnomalyEvent>(AnomalyEvent.class, doc).getEvent();
-
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.ANOMALY, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(AnomalyEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/anomaly/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultAnomalyEvents2(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "anomaly.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.ANOMALY, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.ANOMALY, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<AnomalyEvent> responseResult = new ArrayList<AnomalyEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<AnomalyEvent>(AnomalyEvent.class, doc).getEvent());
             }
@@ -589,75 +631,52 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
     @GET
     @Path("/query/recommendation/default")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultRecommendationEvents(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "recommendation.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.RECOMMENDATION, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
-
-            for (Document doc : queryResult) {
-                RecommendationEvent event = new EventConverter<RecommendationEvent>(RecommendationEvent.class, doc).getEvent();
-
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
-
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.RECOMMENDATION, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(RecommendationEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/recommendation/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultRecommendationEvents2(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "recommendation.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.RECOMMENDATION, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.RECOMMENDATION, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<RecommendationEvent> responseResult = new ArrayList<RecommendationEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<RecommendationEvent>(RecommendationEvent.class, doc).getEvent());
             }
@@ -665,75 +684,52 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
     @GET
     @Path("/query/feedback/default")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultFeedbackEvents(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "feedback.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.FEEDBACK, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
-
-        List<Document> queryResult = null;
-        StringBuilder responseResult = new StringBuilder("[");
-        try {
-            queryResult = query.call();
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.FEEDBACK, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-            for (Document doc : queryResult) {
-                FeedbackEvent event = new EventConverter<FeedbackEvent>(FeedbackEvent.class, doc).getEvent();
-
-                // Serialize event as JSON
-                TSerializer serializer = new TSerializer(new TJSONProtocol.Factory());
-                String jsonEvent = serializer.toString(event);
-
-                responseResult.append(jsonEvent);
-                responseResult.append(",");
-            }
-        } catch (Exception e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        }
-
-        // Convert to string and remove trailing ","
-        int responseLength = responseResult.length();
-        if (responseLength > 1)
-            responseResult.deleteCharAt(responseLength - 1);
-        responseResult.append("]");
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 and stream events as they are read from the cursor
+        return streamEvents(FeedbackEvent.class, query, headers);
     }
 
 
     @GET
     @Path("/query/feedback/default2")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT})
     public Response queryDefaultFeedbackEvents2(
             @QueryParam("startTime") long startTime,
-            @QueryParam("endTime") long endTime)
+            @QueryParam("endTime") long endTime,
+            @QueryParam("limit") int limit,
+            @QueryParam("order") String order,
+            @QueryParam("continuation") String continuation,
+            @Context HttpHeaders headers)
     {
         String collectionId = "feedback.system";
 
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        Callable<List<Document>> query = new EventReaderMongoSync(MONGODB_URL, MONGODB_DATABASE, EventQueryType.FEEDBACK, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null);
-        executor.submit(query);
+        EventQueryPage page = createPage(limit, order, continuation);
+        EventReaderMongoSync query = new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, EventQueryType.FEEDBACK, collectionId, startTime, endTime, null, EventQueryOperation.DEFAULT, null, 0, 0, page);
 
-        List<Document> queryResult = null;
+        List<Document> queryResult = executeQuery(query);
         List<FeedbackEvent> responseResult = new ArrayList<FeedbackEvent>();
         try {
-            queryResult = query.call();
-
             for (Document doc : queryResult) {
                 responseResult.add(new EventConverter<FeedbackEvent>(FeedbackEvent.class, doc).getEvent());
             }
@@ -741,10 +737,9 @@ public class StorageReaderMongoService {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
-        String result = responseResult.toString();
-
-        // Return HTTP response 200 in case of success
-        return Response.status(200).entity(result).build();
+        // Return HTTP response 200 in case of success, with the continuation token of the next page
+        String continuationToken = query.getContinuationToken(queryResult);
+        return createEventsResponse(responseResult, continuationToken, headers);
     }
 
 
@@ -770,6 +765,249 @@ public class StorageReaderMongoService {
     }
 
 
+    @GET
+    @Path("/server/queries")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getServerQueries() {
+        String result = "Active queries: " + this.queryExecutor.getActiveQueries() + ", queued queries: " + this.queryExecutor.getQueuedQueries() + ", available streams: " + this.queryExecutor.getAvailableStreams();
+
+        // Return HTTP response 200 in case of success
+        return Response.status(200).entity(result).build();
+    }
+
+
+    @GET
+    @Path("/server/cache")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getServerCache() {
+        String result = this.queryCache.getStatistics();
+
+        // Return HTTP response 200 in case of success
+        return Response.status(200).entity(result).build();
+    }
+
+
+    @GET
+    @Path("/server/indexes")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getServerIndexes() {
+        String result = executeQuery(new EventIndexQuery(this.mongoClient, MONGODB_DATABASE));
+
+        // Return HTTP response 200 in case of success
+        return Response.status(200).entity(result).build();
+    }
+
+
+    private Response queryAggregate(EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, HttpHeaders headers) {
+        // Aggregate results are only available as JSON
+        checkJsonAcceptable(headers);
+
+        List<Document> queryResult = executeAggregateQuery(queryType, collectionId, startTime, endTime, propertyKey, queryOperation, 0);
+
+        // Return HTTP response 204 in case of no matching events
+        if (queryResult.isEmpty())
+            return Response.status(204).build();
+
+        String result = queryResult.get(0).get("RESULT").toString();
+
+        // Return HTTP response 200 in case of success
+        return Response.status(200).type(MediaType.APPLICATION_JSON_TYPE).entity(result).build();
+    }
+
+
+    private void checkJsonAcceptable(HttpHeaders headers) {
+        // Return HTTP response 406 if the client only accepts binary media types, instead of answering with JSON
+        if (!EventMediaType.isJsonAcceptable(headers))
+            throw new WebApplicationException(Response.status(406).entity("Only " + MediaType.APPLICATION_JSON + " is produced by this query").build());
+    }
+
+
+    private <T extends TBase> Response createEventsResponse(List<T> events, String continuationToken, HttpHeaders headers) {
+        // Binary media types are written as in streamed queries, each event prefixed with its 4 byte length
+        MediaType mediaType = EventMediaType.getEventMediaType(headers);
+        if (!EventMediaType.isThriftType(mediaType))
+            return Response.status(200).type(MediaType.APPLICATION_JSON_TYPE).entity(events.toString()).header(EventQueryPage.CONTINUATION_HEADER, continuationToken).build();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            DataOutputStream stream = new DataOutputStream(output);
+            for (T event : events)
+                EventRawStreamingOutput.writeEvent(stream, event, null, mediaType);
+            stream.flush();
+        } catch (TException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        } catch (IOException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            throw new WebApplicationException(e, 500);
+        }
+
+        return Response.status(200).type(mediaType).entity(output.toByteArray()).header(EventQueryPage.CONTINUATION_HEADER, continuationToken).build();
+    }
+
+
+    private List<Document> executeAggregateQuery(EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, long bucketSize) {
+        // Results of time ranges that can no longer change are served from the cache
+        String cacheKey = EventQueryCache.createKey(collectionId, queryOperation, propertyKey, startTime, endTime, bucketSize);
+        List<Document> queryResult = this.queryCache.get(cacheKey, endTime);
+
+        if (queryResult == null) {
+            queryResult = executeQuery(createAggregateQuery(queryType, collectionId, startTime, endTime, propertyKey, queryOperation, bucketSize));
+            this.queryCache.put(cacheKey, endTime, queryResult);
+        }
+
+        return queryResult;
+    }
+
+
+    private Callable<List<Document>> createAggregateQuery(EventQueryType queryType, String collectionId, long startTime, long endTime, String propertyKey, EventQueryOperation queryOperation, long bucketSize) {
+        EventRollup rollup = selectRollup(queryType, collectionId, startTime, endTime, queryOperation, bucketSize);
+
+        // Route coarse-grained queries to the rollup tier, all other queries read raw events
+        if (rollup != null)
+            return new EventReaderMongoRollup(mongoClient, MONGODB_DATABASE, collectionId, startTime, endTime, propertyKey, queryOperation, bucketSize, rollup, bucketWindow);
+        else
+            return new EventReaderMongoSync(mongoClient, MONGODB_DATABASE, queryType, collectionId, startTime, endTime, propertyKey, queryOperation, null, bucketSize, bucketWindow);
+    }
+
+
+    private EventRollup selectRollup(EventQueryType queryType, String collectionId, long startTime, long endTime, EventQueryOperation queryOperation, long bucketSize) {
+        if (!queryType.equals(EventQueryType.SIMPLE) || !EventRollup.isRollupSource(collectionId))
+            return null;
+
+        boolean isDownsample = queryOperation.equals(EventQueryOperation.DOWNSAMPLE);
+        boolean isScalar = queryOperation.equals(EventQueryOperation.AVERAGE) || queryOperation.equals(EventQueryOperation.MINUMUM)
+                || queryOperation.equals(EventQueryOperation.MAXIMUM) || queryOperation.equals(EventQueryOperation.COUNT)
+                || queryOperation.equals(EventQueryOperation.SUM) || queryOperation.equals(EventQueryOperation.STDDEV);
+
+        // Select coarsest tier that downsample buckets are a multiple of, or that spans at least two buckets of the time range
+        EventRollup selected = null;
+        for (EventRollup rollup : this.rollups) {
+            boolean isMatch = false;
+            if (isDownsample)
+                isMatch = (bucketSize % rollup.getBucketSize() == 0);
+            else if (isScalar)
+                isMatch = (rollup.getBucketSize() * 2 <= endTime - startTime + 1);
+
+            if (isMatch && ((selected == null) || (rollup.getBucketSize() > selected.getBucketSize())))
+                selected = rollup;
+        }
+
+        return selected;
+    }
+
+
+    private long parseBucketSize(String bucket) {
+        long bucketSize = 0;
+        if (bucket != null)
+            bucketSize = EventRollup.parseBucketSize(bucket);
+
+        // Return HTTP response 400 in case of invalid bucket width
+        if (bucketSize <= 0)
+            throw new WebApplicationException(Response.status(400).entity("Invalid bucket: " + bucket).build());
+
+        return bucketSize;
+    }
+
+
+    private <T> T executeQuery(Callable<T> query) {
+        // Returns HTTP response 503, 504 or 500 if the query is rejected, times out or fails
+        return this.queryExecutor.executeQuery(query);
+    }
+
+
+    private <T extends TBase> Response streamEvents(Class<T> eventType, EventReaderMongoSync query, HttpHeaders headers) {
+        // The last event of a paged query is looked up first, the page is streamed up to it and its continuation token is sent as header
+        String continuationToken = executeQuery(new EventTokenQuery(query));
+
+        // The stream permit is taken and the cursor opened when the response is written, both are released when the stream ends
+        // Stored Thrift events are streamed without decoding documents if a binary protocol is requested by the client
+        MediaType mediaType = EventMediaType.getEventMediaType(headers);
+        if (EventMediaType.isThriftType(mediaType))
+            return Response.status(200).type(mediaType).entity(new EventRawStreamingOutput<T>(eventType, new EventRawCursorQuery(query), mediaType, this.queryExecutor))
+                    .header(EventQueryPage.CONTINUATION_HEADER, continuationToken).build();
+
+        return Response.status(200).type(MediaType.APPLICATION_JSON_TYPE).entity(new EventStreamingOutput<T>(eventType, new EventCursorQuery(query), this.queryExecutor))
+                .header(EventQueryPage.CONTINUATION_HEADER, continuationToken).build();
+    }
+
+
+    private EventQueryPage createPage(int limit, String order, String continuation) {
+        try {
+            return EventQueryPage.createPage(limit, order, continuation, this.maxLimit);
+        }
+        catch (IllegalArgumentException e) {
+            // Return HTTP response 400 for invalid page parameters
+            throw new WebApplicationException(Response.status(400).entity(e.getMessage()).build());
+        }
+    }
+
+
+    private static class EventCursorQuery implements Callable<MongoCursor<Document>> {
+        private EventReaderMongoSync query;
+
+        public EventCursorQuery(EventReaderMongoSync query) {
+            this.query = query;
+        }
+
+        public MongoCursor<Document> call() {
+            return query.iterator();
+        }
+    }
+
+
+    private static class EventRawCursorQuery implements Callable<MongoCursor<RawBsonDocument>> {
+        private EventReaderMongoSync query;
+
+        public EventRawCursorQuery(EventReaderMongoSync query) {
+            this.query = query;
+        }
+
+        public MongoCursor<RawBsonDocument> call() {
+            return query.rawIterator();
+        }
+    }
+
+
+    private static class EventTokenQuery implements Callable<String> {
+        private EventReaderMongoSync query;
+
+        public EventTokenQuery(EventReaderMongoSync query) {
+            this.query = query;
+        }
+
+        public String call() {
+            return query.findContinuationToken();
+        }
+    }
+
+
+    private static class EventIndexQuery implements Callable<String> {
+        private MongoClient mongoClient;
+        private String database;
+
+        public EventIndexQuery(MongoClient mongoClient, String database) {
+            this.mongoClient = mongoClient;
+            this.database = database;
+        }
+
+        public String call() {
+            // Index keys per collection as built in MongoDB, indexes are created by the storage writers
+            MongoDatabase database = this.mongoClient.getDatabase(this.database);
+
+            StringBuilder result = new StringBuilder();
+            for (String collectionId : database.listCollectionNames()) {
+                result.append(collectionId).append(":");
+                for (Document index : database.getCollection(collectionId).listIndexes())
+                    result.append(" ").append(((Document)index.get("key")).toJson());
+                result.append(System.getProperty("line.separator"));
+            }
+
+            return result.toString();
+        }
+    }
+
+
     private Properties loadServerProperties() {
         serverProperties = new Properties();
 //        String propFilename = "server.properties";
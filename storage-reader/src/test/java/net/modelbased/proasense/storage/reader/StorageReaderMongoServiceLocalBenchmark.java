@@ -17,6 +17,8 @@
  */
 package net.modelbased.proasense.storage.reader;
 
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
 import eu.proasense.internal.SimpleEvent;
 import net.modelbased.proasense.storage.EventConverter;
 import net.modelbased.proasense.storage.EventProperties;
@@ -31,6 +33,8 @@ import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class StorageReaderMongoServiceLocalBenchmark {
@@ -60,6 +64,55 @@ public class StorageReaderMongoServiceLocalBenchmark {
     }
 
 
+    private long measureQueryLatency(final String mongoURL, final String mongoDatabase, final boolean isSharedClient, final String collectionId, final long startTime, final long endTime, final String propertyKey, int threads, final int iterations) {
+        final AtomicLong totalLatency = new AtomicLong();
+        final AtomicLong totalQueries = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        long timer1 = System.nanoTime();
+
+                        // Either open a new client per query or reuse the shared pooled client
+                        MongoClient mongoClient;
+                        if (isSharedClient)
+                            mongoClient = MongoConnectionManager.getMongoClient(mongoURL);
+                        else
+                            mongoClient = new MongoClient(new MongoClientURI(mongoURL));
+
+                        try {
+                            new EventReaderMongoSync(mongoClient, mongoDatabase, EventQueryType.SIMPLE, collectionId, startTime, endTime, propertyKey, EventQueryOperation.AVERAGE, null).call();
+                        } catch (Exception e) {
+                            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+                        } finally {
+                            if (!isSharedClient)
+                                mongoClient.close();
+                        }
+
+                        totalLatency.addAndGet(System.nanoTime() - timer1);
+                        totalQueries.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        if (totalQueries.get() == 0)
+            return 0;
+
+        // Average latency per query in microseconds
+        return totalLatency.get() / totalQueries.get() / 1000;
+    }
+
+
     public static void main(String[] args) {
         // Get benchmark properties
         StorageReaderMongoServiceLocalBenchmark benchmark = new StorageReaderMongoServiceLocalBenchmark();
@@ -327,8 +380,22 @@ public class StorageReaderMongoServiceLocalBenchmark {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
 
+        // Concurrent query latency with one client per query versus the shared pooled client
+        int NO_QUERY_THREADS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.query.threads", "10")).intValue();
+        int NO_QUERY_ITERATIONS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.query.iterations", "100")).intValue();
+
+        long perQueryClientLatency = benchmark.measureQueryLatency(MONGODB_URL, MONGODB_DATABASE, false, "simple.mhwirth.0", NO_QUERY_SIMPLE_STARTTIME, NO_QUERY_SIMPLE_ENDTIME, propertyKey, NO_QUERY_THREADS, NO_QUERY_ITERATIONS);
+        long sharedClientLatency = benchmark.measureQueryLatency(MONGODB_URL, MONGODB_DATABASE, true, "simple.mhwirth.0", NO_QUERY_SIMPLE_STARTTIME, NO_QUERY_SIMPLE_ENDTIME, propertyKey, NO_QUERY_THREADS, NO_QUERY_ITERATIONS);
+
+        System.out.println("Benchmark: ");
+        System.out.println("  Concurrent query threads      : " + NO_QUERY_THREADS);
+        System.out.println("  Queries per thread            : " + NO_QUERY_ITERATIONS);
+        System.out.println("  Average latency per-query (us): " + perQueryClientLatency);
+        System.out.println("  Average latency shared (us)   : " + sharedClientLatency);
+
         // Shut down executor
         executor.shutdown();
+        MongoConnectionManager.close();
     }
 
 }
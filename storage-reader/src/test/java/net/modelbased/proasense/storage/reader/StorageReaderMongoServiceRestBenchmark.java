@@ -45,6 +45,9 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import javax.ws.rs.core.MediaType;
 
 
 public class StorageReaderMongoServiceRestBenchmark {
@@ -119,6 +122,8 @@ public class StorageReaderMongoServiceRestBenchmark {
 
         String propertyKey = "value";
 
+        int NO_QUERY_ITERATIONS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.query.iterations", "100")).intValue();
+
         // Default HTTP client and common property variables for requests
         HttpClient client = new DefaultHttpClient();
         StringBuilder requestUrl = null;
@@ -139,6 +144,8 @@ public class StorageReaderMongoServiceRestBenchmark {
         requestUrl.append("?");
         requestUrl.append(queryString);
 
+        String defaultSimpleUrl = requestUrl.toString();
+
         HttpGet query11 = new HttpGet(requestUrl.toString());
         query11.setHeader("Content-type", "application/json");
         try {
@@ -330,6 +337,39 @@ public class StorageReaderMongoServiceRestBenchmark {
         } catch (Exception e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         }
+
+        // Compare payload size and end-to-end latency of response formats for the default query for simple events
+        String[] mediaTypes = new String[] { MediaType.APPLICATION_JSON, EventMediaType.APPLICATION_THRIFT, EventMediaType.APPLICATION_THRIFT_COMPACT };
+        for (String mediaType : mediaTypes) {
+            benchmark.benchmarkFormat(client, defaultSimpleUrl, mediaType, false, NO_QUERY_ITERATIONS);
+            benchmark.benchmarkFormat(client, defaultSimpleUrl, mediaType, true, NO_QUERY_ITERATIONS);
+        }
+    }
+
+
+    private void benchmarkFormat(HttpClient client, String requestUrl, String mediaType, boolean isGzip, int iterations) {
+        long payloadSize = 0;
+        long totalTime = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            HttpGet query = new HttpGet(requestUrl);
+            query.setHeader("Accept", mediaType);
+            if (isGzip)
+                query.setHeader("Accept-Encoding", "gzip");
+
+            // Latency includes reading the complete response body as it is sent on the wire
+            try {
+                long startTime = System.nanoTime();
+                HttpResponse response = client.execute(query);
+                byte[] payload = EntityUtils.toByteArray(response.getEntity());
+                totalTime = totalTime + (System.nanoTime() - startTime);
+                payloadSize = payload.length;
+            } catch (Exception e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
+        }
+
+        System.out.println("SIMPLE.DEFAULT." + mediaType + (isGzip ? "+gzip" : "") + ": bytes = " + payloadSize + ", average ms = " + (totalTime / 1000000.0 / iterations));
     }
 
 }
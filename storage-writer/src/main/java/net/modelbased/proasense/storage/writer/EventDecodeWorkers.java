@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventAcknowledgement;
+import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventSerializer;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class EventDecodeWorkers<T> {
+    private static EventDecodeMessage END_OF_STREAM = new EventDecodeMessage(new byte[0], null);
+    private static int WORKER_QUEUE_SIZE = 10000;
+    private static long WORKER_CHECK_INTERVAL = 1000;
+
+    private EventTypeHandler<T> handler;
+    private EventQueue queue;
+    private List<BlockingQueue<EventDecodeMessage>> partitions;
+    private List<Thread> threads;
+    private AtomicLong skippedEvents = new AtomicLong();
+
+
+    public EventDecodeWorkers(String name, EventTypeHandler<T> handler, EventQueue queue, int noWorkers) {
+        this.handler = handler;
+        this.queue = queue;
+        this.partitions = new ArrayList<BlockingQueue<EventDecodeMessage>>(noWorkers);
+        this.threads = new ArrayList<Thread>(noWorkers);
+
+        for (int i = 0; i < noWorkers; i++) {
+            final BlockingQueue<EventDecodeMessage> partition = new ArrayBlockingQueue<EventDecodeMessage>(WORKER_QUEUE_SIZE);
+            this.partitions.add(partition);
+
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    decodeEvents(partition);
+                }
+            }, name + "-decoder-" + i);
+            thread.setDaemon(true);
+            this.threads.add(thread);
+        }
+    }
+
+
+    public void start() {
+        for (Thread thread : this.threads)
+            thread.start();
+    }
+
+
+    public void put(String topic, int partition, byte[] bytes, EventAcknowledgement acknowledgement) throws InterruptedException {
+        // All messages of a topic partition are decoded by the same worker, so events are queued in partition order
+        int index = ((31 * topic.hashCode() + partition) & 0x7fffffff) % this.partitions.size();
+        EventDecodeMessage message = new EventDecodeMessage(bytes, acknowledgement);
+        while (!this.partitions.get(index).offer(message, WORKER_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+            checkWorker(index);
+    }
+
+
+    public boolean offer(String topic, int partition, byte[] bytes, EventAcknowledgement acknowledgement, long timeout) throws InterruptedException {
+        // Bounded wait for listeners that must keep polling while the workers are behind
+        int index = ((31 * topic.hashCode() + partition) & 0x7fffffff) % this.partitions.size();
+        if (this.partitions.get(index).offer(new EventDecodeMessage(bytes, acknowledgement), timeout, TimeUnit.MILLISECONDS))
+            return true;
+
+        checkWorker(index);
+        return false;
+    }
+
+
+    public long getSkippedEvents() {
+        return this.skippedEvents.get();
+    }
+
+
+    public void shutdown() throws InterruptedException {
+        // Workers decode all messages put so far before they stop, a worker that has already stopped is not waited for
+        for (int i = 0; i < this.partitions.size(); i++) {
+            while (!this.partitions.get(i).offer(END_OF_STREAM, WORKER_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (!this.threads.get(i).isAlive())
+                    break;
+            }
+        }
+
+        for (Thread thread : this.threads)
+            thread.join();
+    }
+
+
+    private void decodeEvents(BlockingQueue<EventDecodeMessage> partition) {
+        try {
+            while (true) {
+                EventDecodeMessage message = partition.take();
+                if (message == END_OF_STREAM)
+                    break;
+
+                try {
+                    // Convert message to Apache Thrift struct
+                    T event = this.handler.createEvent();
+                    EventSerializer.deserialize((TBase)event, message.bytes);
+
+                    // Convert event message to document
+                    EventDocument eventDocument = this.handler.createDocument(event, message.bytes);
+                    if (message.acknowledgement != null)
+                        eventDocument.setAcknowledgement(message.acknowledgement);
+                    queue.put(eventDocument);
+                } catch (TException e) {
+                    skipMessage(message, e);
+                } catch (RuntimeException e) {
+                    skipMessage(message, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+
+    private void skipMessage(EventDecodeMessage message, Exception e) {
+        // Undecodable messages are skipped and counted, acknowledging them lets offsets be committed past them
+        long skipped = this.skippedEvents.incrementAndGet();
+        System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        System.out.println("EventDecodeWorkers: skipped undecodable event, skipped events: " + skipped);
+        if (message.acknowledgement != null)
+            message.acknowledgement.acknowledge(true);
+    }
+
+
+    private void checkWorker(int index) {
+        // A stopped worker no longer drains its queue, waiting for it would block the listener forever
+        if (!this.threads.get(index).isAlive())
+            throw new IllegalStateException("EventDecodeWorkers: stopped worker " + this.threads.get(index).getName());
+    }
+
+
+    private static class EventDecodeMessage {
+        private byte[] bytes;
+        private EventAcknowledgement acknowledgement;
+
+        public EventDecodeMessage(byte[] bytes, EventAcknowledgement acknowledgement) {
+            this.bytes = bytes;
+            this.acknowledgement = acknowledgement;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventStorageProfile;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.util.Map;
+
+
+public class EventFlushPolicy {
+    public static int DEFAULT_BULK_BYTES = 8388608;
+
+    private static int DOCUMENT_OVERHEAD_BYTES = 64;
+    private static int PROPERTY_OVERHEAD_BYTES = 32;
+
+    private int bulkSize;
+    private int bulkBytes;
+    private int maxWait;
+
+    private int pendingDocuments = 0;
+    private long pendingBytes = 0;
+    private long oldestPendingTime = Long.MAX_VALUE;
+
+
+    public EventFlushPolicy(int bulkSize, int bulkBytes, int maxWait) {
+        this.bulkSize = bulkSize;
+        this.bulkBytes = bulkBytes;
+        this.maxWait = maxWait;
+    }
+
+
+    public void add(EventDocument eventDocument) {
+        this.pendingDocuments++;
+        this.pendingBytes = this.pendingBytes + estimateSize(eventDocument);
+
+        // Age is measured from when the event entered the writer queue, not from when it was dequeued
+        this.oldestPendingTime = Math.min(this.oldestPendingTime, eventDocument.getCreatedTime());
+    }
+
+
+    public boolean isFlushRequired(long now) {
+        if (this.pendingDocuments == 0)
+            return false;
+
+        return (this.pendingDocuments >= this.bulkSize)
+                || (this.pendingBytes >= this.bulkBytes)
+                || (now >= getFlushDeadline());
+    }
+
+
+    public long getFlushDeadline() {
+        if (this.pendingDocuments == 0)
+            return Long.MAX_VALUE;
+
+        return this.oldestPendingTime + this.maxWait;
+    }
+
+
+    public int getPendingDocuments() {
+        return this.pendingDocuments;
+    }
+
+
+    public long getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+
+    public void reset() {
+        this.pendingDocuments = 0;
+        this.pendingBytes = 0;
+        this.oldestPendingTime = Long.MAX_VALUE;
+    }
+
+
+    public static long estimateSize(EventDocument eventDocument) {
+        // Events encoded directly to BSON are estimated from the serialized event, structured fields take about the same size
+        if (!eventDocument.hasDocument() && (eventDocument.getSerializedEvent() != null)) {
+            long size = eventDocument.getSerializedEvent().length;
+            if (eventDocument.getProfile().equals(EventStorageProfile.BOTH))
+                size = size * 2;
+
+            return DOCUMENT_OVERHEAD_BYTES + size;
+        }
+
+        return estimateSize(eventDocument.getDocument());
+    }
+
+
+    public static long estimateSize(Document document) {
+        // Cheap estimate from the serialized event and number of properties, documents are not encoded to BSON here
+        long size = DOCUMENT_OVERHEAD_BYTES;
+
+        Object serializedEvent = document.get(EventProperties.STORAGE_SERIALIZED_EVENT_KEY);
+        if (serializedEvent instanceof byte[])
+            size = size + ((byte[])serializedEvent).length;
+        else if (serializedEvent instanceof Binary)
+            size = size + ((Binary)serializedEvent).length();
+
+        Object eventProperties = document.get("eventProperties");
+        if (eventProperties instanceof Map)
+            size = size + ((Map)eventProperties).size() * PROPERTY_OVERHEAD_BYTES;
+
+        return size;
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventBucketLayout;
+import net.modelbased.proasense.storage.EventProperties;
+
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+public class EventIndexManager {
+    private static String INDEX_STATUS_PENDING = "PENDING";
+    private static String INDEX_STATUS_CREATED = "CREATED";
+    private static String INDEX_STATUS_FAILED = "FAILED";
+    private static long INDEX_RETRY_INTERVAL = 60000;
+
+    private static ConcurrentMap<String, String> indexStatus = new ConcurrentHashMap<String, String>();
+    private static ConcurrentMap<String, Long> indexFailures = new ConcurrentHashMap<String, Long>();
+
+
+    private EventIndexManager() {
+    }
+
+
+    public static List<IndexModel> getIndexes(String collectionId, boolean isBucketCollection) {
+        List<IndexModel> indexes = new ArrayList<IndexModel>();
+
+        // All event collections are queried on timestamp ranges, paged queries continue after the last timestamp and id
+        indexes.add(new IndexModel(new Document("timestamp", 1).append("_id", 1)));
+
+        // Derived event collections (including KPI) are also filtered on event name
+        if (collectionId.startsWith(EventProperties.DERIVEDEVENT_STORAGE_COLLECTION_PREFIX))
+            indexes.add(new IndexModel(new Document("eventName", 1).append("timestamp", 1).append("_id", 1)));
+
+        // A batch id is held by one bucket only, retried bucket updates fail with duplicate key instead of appending events twice (requires MongoDB 3.2)
+        if (isBucketCollection)
+            indexes.add(new IndexModel(new Document(EventBucketLayout.BATCHES_KEY, 1), new IndexOptions().unique(true)
+                    .partialFilterExpression(new Document(EventBucketLayout.BATCHES_KEY, new Document("$exists", true)))));
+
+        return indexes;
+    }
+
+
+    public static boolean isCreated(String collectionId) {
+        return INDEX_STATUS_CREATED.equals(indexStatus.get(collectionId));
+    }
+
+
+    private static boolean startIndexes(String collectionId) {
+        // Indexes are created the first time a collection is seen in this process, failed index builds are retried after an interval
+        String status = indexStatus.putIfAbsent(collectionId, INDEX_STATUS_PENDING);
+        if (status == null)
+            return true;
+
+        if (!status.startsWith(INDEX_STATUS_FAILED) || (System.currentTimeMillis() - indexFailures.get(collectionId) < INDEX_RETRY_INTERVAL))
+            return false;
+
+        return indexStatus.replace(collectionId, status, INDEX_STATUS_PENDING);
+    }
+
+
+    private static void completeIndexes(String collectionId, Throwable t) {
+        if (t == null) {
+            indexStatus.put(collectionId, INDEX_STATUS_CREATED);
+            System.out.println("EventIndexManager: indexes " + INDEX_STATUS_CREATED + " for " + collectionId);
+        }
+        else {
+            indexFailures.put(collectionId, System.currentTimeMillis());
+            indexStatus.put(collectionId, INDEX_STATUS_FAILED + ": " + t.getMessage());
+            System.out.println("EventIndexManager: indexes " + INDEX_STATUS_FAILED + " for " + collectionId + ", retry in " + INDEX_RETRY_INTERVAL + " ms, " + t.getClass().getName() + ": " + t.getMessage());
+        }
+    }
+
+
+    public static void ensureIndexes(com.mongodb.client.MongoCollection<Document> collection, String collectionId) {
+        ensureIndexes(collection, collectionId, false);
+    }
+
+
+    public static void ensureIndexes(com.mongodb.client.MongoCollection<Document> collection, String collectionId, boolean isBucketCollection) {
+        if (!startIndexes(collectionId))
+            return;
+
+        try {
+            for (IndexModel index : getIndexes(collectionId, isBucketCollection))
+                collection.createIndex(index.getKeys(), index.getOptions());
+
+            completeIndexes(collectionId, null);
+        }
+        catch (Exception e) {
+            completeIndexes(collectionId, e);
+        }
+    }
+
+
+    public static void ensureIndexes(com.mongodb.async.client.MongoCollection<Document> collection, final String collectionId) {
+        ensureIndexes(collection, collectionId, false);
+    }
+
+
+    public static void ensureIndexes(com.mongodb.async.client.MongoCollection<Document> collection, final String collectionId, boolean isBucketCollection) {
+        if (!startIndexes(collectionId))
+            return;
+
+        List<IndexModel> indexes = getIndexes(collectionId, isBucketCollection);
+        final int[] remaining = new int[] { indexes.size() };
+        final Throwable[] failure = new Throwable[1];
+
+        for (IndexModel index : indexes) {
+            collection.createIndex(index.getKeys(), index.getOptions(), new SingleResultCallback<String>() {
+//                @Override
+                public void onResult(final String result, final Throwable t) {
+                    synchronized (remaining) {
+                        remaining[0]--;
+                        if (t != null)
+                            failure[0] = t;
+
+                        if (remaining[0] == 0)
+                            completeIndexes(collectionId, failure[0]);
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -18,15 +18,8 @@
 package net.modelbased.proasense.storage.writer;
 
 import net.modelbased.proasense.storage.EventDocument;
-import net.modelbased.proasense.storage.EventDocumentConverter;
-import net.modelbased.proasense.storage.EventProperties;
-
-import eu.proasense.internal.AnomalyEvent;
-import eu.proasense.internal.DerivedEvent;
-import eu.proasense.internal.FeedbackEvent;
-import eu.proasense.internal.PredictedEvent;
-import eu.proasense.internal.RecommendationEvent;
-import eu.proasense.internal.SimpleEvent;
+import net.modelbased.proasense.storage.EventSerializer;
+import net.modelbased.proasense.storage.EventStorageProfile;
 
 import kafka.consumer.Consumer;
 import kafka.consumer.ConsumerConfig;
@@ -35,15 +28,15 @@ import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
 import kafka.consumer.Whitelist;
 import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.message.MessageAndMetadata;
 
 import org.apache.thrift.TBase;
-import org.apache.thrift.TDeserializer;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,14 +47,28 @@ import java.util.concurrent.BlockingQueue;
 public class EventListenerKafka<T> implements Runnable {
     private Properties kafkaProperties;
     private Class<T> eventType;
-    private BlockingQueue<EventDocument> queue;
+    private EventQueue queue;
     private String zooKeeper;
     private String groupId;
     private String topic;
     private Boolean isTopicFilter;
+    private EventStorageProfile profile;
+    private EventTypeHandler<T> handler;
+    private long skippedEvents;
+    private int noDecodeWorkers;
 
 
     public EventListenerKafka(Class<T> eventType, BlockingQueue<EventDocument> queue, String zooKeeper, String groupId, String topic, boolean isTopicFilter) {
+        this(eventType, queue, zooKeeper, groupId, topic, isTopicFilter, EventStorageProfile.BOTH);
+    }
+
+
+    public EventListenerKafka(Class<T> eventType, BlockingQueue<EventDocument> queue, String zooKeeper, String groupId, String topic, boolean isTopicFilter, EventStorageProfile profile) {
+        this(eventType, new EventQueueRouter(Collections.singletonList(queue)), zooKeeper, groupId, topic, isTopicFilter, profile, 0);
+    }
+
+
+    public EventListenerKafka(Class<T> eventType, EventQueue queue, String zooKeeper, String groupId, String topic, boolean isTopicFilter, EventStorageProfile profile, int noDecodeWorkers) {
         // Get Kafka properties
         this.kafkaProperties = loadKafkaProperties();
 
@@ -72,6 +79,13 @@ public class EventListenerKafka<T> implements Runnable {
         this.groupId = groupId;
         this.topic = topic;
         this.isTopicFilter = isTopicFilter;
+        this.profile = profile;
+
+        // Resolve event type handler once for all messages
+        this.handler = EventTypeHandler.createHandler(eventType, profile);
+
+        // Messages are decoded by the listener thread, or by decode workers keyed by partition
+        this.noDecodeWorkers = noDecodeWorkers;
     }
 
 
@@ -134,74 +148,74 @@ public class EventListenerKafka<T> implements Runnable {
         // Consume message
         ConsumerIterator<byte[], byte[]> it = messageAndMetadatas.iterator();
 
+        // Start decode workers
+        EventDecodeWorkers<T> decodeWorkers = null;
+        if (this.noDecodeWorkers > 0) {
+            decodeWorkers = new EventDecodeWorkers<T>(this.topic, this.handler, this.queue, this.noDecodeWorkers);
+            decodeWorkers.start();
+        }
+
         int cnt = 0;
         try {
             while (it.hasNext()) {
                 cnt++;
-                byte[] bytes = it.next().message();
-
-                // Convert message to Apache Thrift struct
-                TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
-                T event = eventType.newInstance();
-                deserializer.deserialize((TBase)event, bytes);
-
-//                if (cnt % 1000 == 0)
-//                    System.out.println("SimpleEvent(" + cnt + "): " + event.toString());
-
-                String eventTypeName = eventType.getName();
-
-                // Convert event message to document
-                if (eventTypeName.matches(EventProperties.SIMPLEEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((SimpleEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
+                MessageAndMetadata<byte[], byte[]> message = it.next();
+                byte[] bytes = message.message();
 
-                    queue.put(eventDocument);
+                if (decodeWorkers != null) {
+                    decodeWorkers.put(message.topic(), message.partition(), bytes, null);
                 }
-                if (eventTypeName.matches(EventProperties.DERIVEDEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((DerivedEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
-
-                    queue.put(eventDocument);
-                }
-                if (eventTypeName.matches(EventProperties.PREDICTEDEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((PredictedEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
-
-                    queue.put(eventDocument);
-                }
-                if (eventTypeName.matches(EventProperties.ANOMALYEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((AnomalyEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
-
-                    queue.put(eventDocument);
-                }
-                if (eventTypeName.matches(EventProperties.RECOMMENDATIONEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((RecommendationEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
-
-                    queue.put(eventDocument);
-                }
-                if (eventTypeName.matches(EventProperties.FEEDBACKEVENT_CLASS_NAME)) {
-                    EventDocumentConverter converter = new EventDocumentConverter((FeedbackEvent) event);
-                    EventDocument eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
-
-                    queue.put(eventDocument);
+                else {
+                    EventDocument eventDocument = null;
+                    try {
+                        // Convert message to Apache Thrift struct
+                        T event = this.handler.createEvent();
+                        EventSerializer.deserialize((TBase)event, bytes);
+
+//                        if (cnt % 1000 == 0)
+//                            System.out.println("SimpleEvent(" + cnt + "): " + event.toString());
+
+                        // Convert event message to document
+                        eventDocument = this.handler.createDocument(event, bytes);
+                    } catch (TException e) {
+                        skipMessage(e);
+                    } catch (RuntimeException e) {
+                        skipMessage(e);
+                    }
+
+                    if (eventDocument != null)
+                        queue.put(eventDocument);
                 }
             }
-        } catch (IllegalAccessException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        } catch (InstantiationException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
         } catch (ConsumerTimeoutException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
-        } catch (TException e) {
-            System.out.println(e.getClass().getName() + ": " + e.getMessage());
         } catch (InterruptedException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
         } finally {
+            if (decodeWorkers != null)
+                shutdownDecodeWorkers(decodeWorkers);
             kafkaConsumer.commitOffsets();
             kafkaConsumer.shutdown();
         }
     }
 
+
+    private void skipMessage(Exception e) {
+        // Undecodable messages are skipped and counted
+        this.skippedEvents++;
+        System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        System.out.println("EventListenerKafka: skipped undecodable event for " + this.topic + ", skipped events: " + this.skippedEvents);
+    }
+
+
+    private void shutdownDecodeWorkers(EventDecodeWorkers<T> decodeWorkers) {
+        // Messages already consumed are decoded and queued before offsets are committed
+        try {
+            decodeWorkers.shutdown();
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
 }
@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventAcknowledgement;
+import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventSerializer;
+import net.modelbased.proasense.storage.EventStorageProfile;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+
+public class EventListenerKafkaConsumer<T> implements Runnable {
+    public static String CONSUMER_CONNECTOR = "connector";
+    public static String CONSUMER_POLL = "poll";
+    public static String COMMIT_AUTO = "auto";
+    public static String COMMIT_ACKNOWLEDGED = "acknowledged";
+
+    private Properties kafkaProperties;
+    private Class<T> eventType;
+    private EventQueue queue;
+    private String bootstrapServers;
+    private String groupId;
+    private String topic;
+    private Boolean isTopicFilter;
+    private EventStorageProfile profile;
+    private EventTypeHandler<T> handler;
+    private long pollTimeout;
+    private boolean isAcknowledgedCommit;
+    private int commitEvents;
+    private long commitInterval;
+    private long commitTimeout;
+    private long revokeTimeout;
+    private EventOffsetTracker offsetTracker;
+    private boolean isPaused;
+    private long skippedEvents;
+    private long recoveries;
+    private int noDecodeWorkers;
+
+
+    public EventListenerKafkaConsumer(Class<T> eventType, EventQueue queue, String bootstrapServers, String groupId, String topic, boolean isTopicFilter, EventStorageProfile profile, long pollTimeout, String commitMode, int commitEvents, long commitInterval, long commitTimeout, int noDecodeWorkers) {
+        // Get Kafka properties
+        this.kafkaProperties = loadKafkaProperties();
+
+        // Get event listener properties
+        this.eventType = eventType;
+        this.queue = queue;
+        this.bootstrapServers = bootstrapServers;
+        this.groupId = groupId;
+        this.topic = topic;
+        this.isTopicFilter = isTopicFilter;
+        this.profile = profile;
+        this.pollTimeout = pollTimeout;
+
+        // Resolve event type handler once for all messages
+        this.handler = EventTypeHandler.createHandler(eventType, profile);
+
+        // Offsets are committed by Kafka auto commit, or only after the consumed events are written to MongoDB
+        this.isAcknowledgedCommit = COMMIT_ACKNOWLEDGED.equals(commitMode);
+        this.commitEvents = commitEvents;
+        this.commitInterval = commitInterval;
+        this.commitTimeout = commitTimeout;
+        if (this.isAcknowledgedCommit)
+            this.offsetTracker = new EventOffsetTracker();
+
+        // Commits on rebalance run inside poll(), they must complete well within the session timeout
+        long sessionTimeout = new Long(this.kafkaProperties.getProperty("session.timeout.ms", "30000")).longValue();
+        this.revokeTimeout = Math.min(commitTimeout, sessionTimeout / 3);
+
+        // Messages are decoded by the listener thread, or by decode workers keyed by partition
+        this.noDecodeWorkers = noDecodeWorkers;
+    }
+
+
+    private Properties loadKafkaProperties() {
+        Properties kafkaProperties = new Properties();
+        String propFilename = "kafka.properties";
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(propFilename);
+
+        try {
+            if (inputStream != null) {
+                kafkaProperties.load(inputStream);
+            } else
+                throw new FileNotFoundException("Property file: '" + propFilename + "' not found in classpath.");
+        }
+        catch (IOException e) {
+            System.out.println("Exception:" + e.getMessage());
+        }
+
+        return kafkaProperties;
+    }
+
+
+    private KafkaConsumer<byte[], byte[]> createKafkaConsumer(String bootstrapServers, String groupId) {
+        // Specify consumer properties, consumers of the same group share the partitions of the subscribed topics
+        Properties props = new Properties();
+        props.put("bootstrap.servers", bootstrapServers);
+        props.put("group.id", groupId);
+        props.put("key.deserializer", ByteArrayDeserializer.class.getName());
+        props.put("value.deserializer", ByteArrayDeserializer.class.getName());
+        props.put("session.timeout.ms", this.kafkaProperties.getProperty("session.timeout.ms", "30000"));
+        props.put("max.poll.records", this.kafkaProperties.getProperty("max.poll.records", "500"));
+        props.put("fetch.min.bytes", this.kafkaProperties.getProperty("fetch.min.bytes", "1"));
+        props.put("fetch.max.wait.ms", this.kafkaProperties.getProperty("fetch.max.wait.ms", "500"));
+        props.put("max.partition.fetch.bytes", this.kafkaProperties.getProperty("max.partition.fetch.bytes", "1048576"));
+        props.put("partition.assignment.strategy", this.kafkaProperties.getProperty("partition.assignment.strategy", "org.apache.kafka.clients.consumer.RangeAssignor"));
+        props.put("auto.offset.reset", this.kafkaProperties.getProperty("auto.offset.reset", "latest"));
+        props.put("auto.commit.interval.ms", this.kafkaProperties.getProperty("auto.commit.interval.ms"));
+        props.put("enable.auto.commit", Boolean.toString(!this.isAcknowledgedCommit));
+
+        return new KafkaConsumer<byte[], byte[]>(props);
+    }
+
+
+    public void run() {
+        // Create Kafka consumer
+        final KafkaConsumer<byte[], byte[]> kafkaConsumer = createKafkaConsumer(this.bootstrapServers, this.groupId);
+
+        // Records consumed but not yet queued, in consumption order
+        final LinkedList<EventPendingRecord> backlog = new LinkedList<EventPendingRecord>();
+
+        // Commit the events acknowledged so far before partitions are reassigned to another listener of the group
+        ConsumerRebalanceListener rebalanceListener = new ConsumerRebalanceListener() {
+//            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // Records of revoked partitions not yet queued are consumed again by their next owner
+                removeBacklog(backlog, partitions);
+                if (isAcknowledgedCommit)
+                    commitRevoked(kafkaConsumer, partitions, revokeTimeout);
+            }
+
+//            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                if (isPaused)
+                    kafkaConsumer.pause(partitions);
+            }
+        };
+
+        // Subscribe by topic pattern or by topic name
+        if (this.isTopicFilter)
+            kafkaConsumer.subscribe(Pattern.compile(this.topic), rebalanceListener);
+        else
+            kafkaConsumer.subscribe(Collections.singletonList(this.topic), rebalanceListener);
+
+        // Start decode workers
+        EventDecodeWorkers<T> decodeWorkers = null;
+        if (this.noDecodeWorkers > 0) {
+            decodeWorkers = new EventDecodeWorkers<T>(this.topic, this.handler, this.queue, this.noDecodeWorkers);
+            decodeWorkers.start();
+        }
+
+        int cnt = 0;
+        int lastCommitCnt = 0;
+        long lastCommitTime = System.currentTimeMillis();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Events that finally failed to be written are consumed again from the committed offsets, offsets are never committed past them
+                if (this.isAcknowledgedCommit && (this.offsetTracker.getFailedEvents() > 0))
+                    recoverFailed(kafkaConsumer, backlog);
+
+                // Consume messages in batches of up to max.poll.records, paused partitions return no records but poll() keeps the consumer in the group
+                ConsumerRecords<byte[], byte[]> records = kafkaConsumer.poll(backlog.isEmpty() ? this.pollTimeout : 0);
+
+                for (ConsumerRecord<byte[], byte[]> record : records) {
+                    cnt++;
+                    try {
+                        backlog.add(createPendingRecord(record, decodeWorkers == null));
+                    } catch (TException e) {
+                        skipRecord(record, e);
+                    } catch (RuntimeException e) {
+                        skipRecord(record, e);
+                    }
+                }
+
+                // Records are queued with a bounded wait, fetching is paused while the writers are behind
+                if (queueBacklog(backlog, decodeWorkers)) {
+                    if (this.isPaused) {
+                        this.isPaused = false;
+                        kafkaConsumer.resume(kafkaConsumer.assignment());
+                    }
+                }
+                else if (!this.isPaused) {
+                    this.isPaused = true;
+                    kafkaConsumer.pause(kafkaConsumer.assignment());
+                }
+
+                // Commit the contiguous acknowledged offsets in batches without waiting for the writers
+                if (this.isAcknowledgedCommit && ((cnt - lastCommitCnt >= this.commitEvents) || (System.currentTimeMillis() - lastCommitTime >= this.commitInterval))) {
+                    commitAcknowledged(kafkaConsumer);
+                    lastCommitCnt = cnt;
+                    lastCommitTime = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        } finally {
+            // Clear the interrupt so the final commit and close can complete
+            boolean isInterrupted = Thread.interrupted();
+            if (decodeWorkers != null)
+                shutdownDecodeWorkers(decodeWorkers);
+            if (this.isAcknowledgedCommit)
+                commitRevoked(kafkaConsumer, kafkaConsumer.assignment(), this.commitTimeout);
+            else
+                kafkaConsumer.commitSync();
+            kafkaConsumer.close();
+            if (isInterrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void commitAcknowledged(KafkaConsumer<byte[], byte[]> kafkaConsumer) {
+        // Offsets are committed up to the first event not yet acknowledged per partition, fetching continues meanwhile
+        Map<TopicPartition, OffsetAndMetadata> offsets = this.offsetTracker.getCommitOffsets();
+        if (offsets.isEmpty())
+            return;
+
+        kafkaConsumer.commitAsync(offsets, new OffsetCommitCallback() {
+//            @Override
+            public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception e) {
+                // A failed commit is covered by the next commit of a later offset, or by the commit on revoke
+                if (e != null)
+                    System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            }
+        });
+    }
+
+
+    private void commitRevoked(KafkaConsumer<byte[], byte[]> kafkaConsumer, Collection<TopicPartition> partitions, long timeout) {
+        // Called from poll() on rebalance and on shutdown, where the consumer must not be polled again
+        try {
+            if (!this.offsetTracker.awaitAcknowledged(partitions, timeout))
+                System.out.println("EventListenerKafkaConsumer: offsets committed before pending events for " + this.topic + ", pending events: " + this.offsetTracker.getPendingEvents(partitions) + ", failed events: " + this.offsetTracker.getFailedEvents());
+
+            // Events acknowledged so far are committed, the other events of the partitions are consumed again by their next owner
+            Map<TopicPartition, OffsetAndMetadata> offsets = this.offsetTracker.getCommitOffsets(partitions);
+            if (!offsets.isEmpty())
+                kafkaConsumer.commitSync(offsets);
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+            Thread.currentThread().interrupt();
+        } catch (KafkaException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        } finally {
+            this.offsetTracker.remove(partitions);
+        }
+    }
+
+
+    private void recoverFailed(KafkaConsumer<byte[], byte[]> kafkaConsumer, LinkedList<EventPendingRecord> backlog) throws InterruptedException {
+        // Back off before consuming again, bounded like the commit on revoke since the consumer only heartbeats from poll()
+        this.recoveries++;
+        System.out.println("EventListenerKafkaConsumer: consuming again from committed offsets for " + this.topic + ", failed events: " + this.offsetTracker.getFailedEvents() + ", recoveries: " + this.recoveries);
+        Thread.sleep(this.revokeTimeout);
+
+        // Events acknowledged up to the first failed or pending event of each partition are committed
+        Set<TopicPartition> partitions = kafkaConsumer.assignment();
+        try {
+            Map<TopicPartition, OffsetAndMetadata> offsets = this.offsetTracker.getCommitOffsets(partitions);
+            if (!offsets.isEmpty())
+                kafkaConsumer.commitSync(offsets);
+        } catch (KafkaException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        // Partitions never committed are consumed again from their first record not yet queued
+        Map<TopicPartition, Long> backlogOffsets = new HashMap<TopicPartition, Long>();
+        for (EventPendingRecord record : backlog) {
+            if (!backlogOffsets.containsKey(record.partition))
+                backlogOffsets.put(record.partition, record.offset);
+        }
+        backlog.clear();
+
+        // Events still queued acknowledge the discarded tracker, the events after the committed offsets are tracked again when consumed
+        this.offsetTracker = new EventOffsetTracker();
+
+        for (TopicPartition partition : partitions) {
+            OffsetAndMetadata committed = kafkaConsumer.committed(partition);
+            if (committed != null)
+                kafkaConsumer.seek(partition, committed.offset());
+            else if (backlogOffsets.containsKey(partition))
+                kafkaConsumer.seek(partition, backlogOffsets.get(partition).longValue());
+        }
+    }
+
+
+    private EventPendingRecord createPendingRecord(ConsumerRecord<byte[], byte[]> record, boolean isDecoded) throws TException {
+        EventPendingRecord pendingRecord = new EventPendingRecord(new TopicPartition(record.topic(), record.partition()), record.offset(), record.value());
+        if (!isDecoded)
+            return pendingRecord;
+
+        // Convert message to Apache Thrift struct
+        T event = this.handler.createEvent();
+        EventSerializer.deserialize((TBase)event, record.value());
+
+        // Convert event message to document
+        pendingRecord.eventDocument = this.handler.createDocument(event, record.value());
+
+        return pendingRecord;
+    }
+
+
+    private void skipRecord(ConsumerRecord<byte[], byte[]> record, Exception e) {
+        // Undecodable records are skipped and counted, offsets are committed past them with the next queued record
+        this.skippedEvents++;
+        System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        System.out.println("EventListenerKafkaConsumer: skipped undecodable event at " + record.topic() + "-" + record.partition() + ":" + record.offset() + ", skipped events: " + this.skippedEvents);
+    }
+
+
+    private boolean queueBacklog(LinkedList<EventPendingRecord> backlog, EventDecodeWorkers<T> decodeWorkers) throws InterruptedException {
+        // Records are queued in consumption order, the wait is bounded by the poll timeout so the listener polls again in time
+        while (!backlog.isEmpty()) {
+            EventPendingRecord record = backlog.getFirst();
+
+            // Offsets are tracked before the event is queued, so the writers never acknowledge an offset not yet tracked
+            EventAcknowledgement acknowledgement = null;
+            if (this.isAcknowledgedCommit)
+                acknowledgement = this.offsetTracker.add(record.partition, record.offset);
+
+            boolean isQueued;
+            if (decodeWorkers != null)
+                isQueued = decodeWorkers.offer(record.partition.topic(), record.partition.partition(), record.bytes, acknowledgement, this.pollTimeout);
+            else {
+                if (acknowledgement != null)
+                    record.eventDocument.setAcknowledgement(acknowledgement);
+                isQueued = this.queue.offer(record.eventDocument, this.pollTimeout, TimeUnit.MILLISECONDS);
+            }
+
+            if (!isQueued) {
+                if (acknowledgement != null)
+                    this.offsetTracker.cancel(record.partition, record.offset);
+                return false;
+            }
+
+            backlog.removeFirst();
+        }
+
+        return true;
+    }
+
+
+    private void removeBacklog(LinkedList<EventPendingRecord> backlog, Collection<TopicPartition> partitions) {
+        Iterator<EventPendingRecord> it = backlog.iterator();
+        while (it.hasNext()) {
+            if (partitions.contains(it.next().partition))
+                it.remove();
+        }
+    }
+
+
+    private void shutdownDecodeWorkers(EventDecodeWorkers<T> decodeWorkers) {
+        // Messages already consumed are decoded and queued before offsets are committed
+        try {
+            decodeWorkers.shutdown();
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+
+    private static class EventPendingRecord {
+        private TopicPartition partition;
+        private long offset;
+        private byte[] bytes;
+        private EventDocument eventDocument;
+
+        public EventPendingRecord(TopicPartition partition, long offset, byte[] bytes) {
+            this.partition = partition;
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventAcknowledgement;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class EventOffsetTracker {
+    private Map<TopicPartition, EventPartitionOffsets> partitions = new HashMap<TopicPartition, EventPartitionOffsets>();
+    private AtomicLong failedEvents = new AtomicLong();
+    private Object lock = new Object();
+
+
+    public EventOffsetTracker() {
+    }
+
+
+    // Partitions are added, committed and removed by the listener thread only, writers acknowledge events from their own threads
+    public EventAcknowledgement add(TopicPartition partition, long offset) {
+        EventPartitionOffsets offsets = this.partitions.get(partition);
+        if (offsets == null) {
+            offsets = new EventPartitionOffsets();
+            this.partitions.put(partition, offsets);
+        }
+
+        // Offsets are added in consumption order before the event is queued, so a writer never acknowledges an offset not yet added
+        offsets.add(offset);
+
+        return new EventOffsetAcknowledgement(offsets, offset);
+    }
+
+
+    public void cancel(TopicPartition partition, long offset) {
+        // Event was not queued, it is consumed again from this offset
+        EventPartitionOffsets offsets = this.partitions.get(partition);
+        if (offsets != null) {
+            offsets.cancel(offset);
+            signal();
+        }
+    }
+
+
+    public Map<TopicPartition, OffsetAndMetadata> getCommitOffsets() {
+        // Partitions whose contiguous acknowledged offset has advanced since the last commit
+        Map<TopicPartition, OffsetAndMetadata> commitOffsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+        for (Map.Entry<TopicPartition, EventPartitionOffsets> entry : this.partitions.entrySet()) {
+            long commitOffset = entry.getValue().getCommitOffset();
+            if (commitOffset > entry.getValue().committedOffset) {
+                commitOffsets.put(entry.getKey(), new OffsetAndMetadata(commitOffset));
+                entry.getValue().committedOffset = commitOffset;
+            }
+        }
+
+        return commitOffsets;
+    }
+
+
+    public Map<TopicPartition, OffsetAndMetadata> getCommitOffsets(Collection<TopicPartition> partitions) {
+        // Current contiguous acknowledged offset of the given partitions, also if an earlier commit of it failed
+        Map<TopicPartition, OffsetAndMetadata> commitOffsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+        for (TopicPartition partition : partitions) {
+            EventPartitionOffsets offsets = this.partitions.get(partition);
+            if ((offsets != null) && (offsets.getCommitOffset() > 0)) {
+                commitOffsets.put(partition, new OffsetAndMetadata(offsets.getCommitOffset()));
+                offsets.committedOffset = offsets.getCommitOffset();
+            }
+        }
+
+        return commitOffsets;
+    }
+
+
+    public void remove(Collection<TopicPartition> partitions) {
+        // Events of revoked partitions still acknowledged by the writers are no longer tracked
+        for (TopicPartition partition : partitions)
+            this.partitions.remove(partition);
+    }
+
+
+    public boolean awaitAcknowledged(Collection<TopicPartition> partitions, long timeout) throws InterruptedException {
+        // Failed events are never acknowledged, offsets are not committed past them
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while ((getPendingEvents(partitions) > 0) && (failedEvents.get() == 0)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+
+                lock.wait(remaining);
+            }
+        }
+
+        return (getPendingEvents(partitions) == 0) && (failedEvents.get() == 0);
+    }
+
+
+    public long getPendingEvents() {
+        return getPendingEvents(this.partitions.keySet());
+    }
+
+
+    public long getPendingEvents(Collection<TopicPartition> partitions) {
+        long pendingEvents = 0;
+        for (TopicPartition partition : partitions) {
+            EventPartitionOffsets offsets = this.partitions.get(partition);
+            if (offsets != null)
+                pendingEvents = pendingEvents + offsets.getPendingEvents();
+        }
+
+        return pendingEvents;
+    }
+
+
+    public long getFailedEvents() {
+        return failedEvents.get();
+    }
+
+
+    private void signal() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+
+    private static class EventPartitionOffsets {
+        private TreeSet<Long> pendingOffsets = new TreeSet<Long>();
+        private long consumedOffset = -1;
+        private long committedOffset = -1;
+
+        public synchronized void add(long offset) {
+            this.pendingOffsets.add(offset);
+            this.consumedOffset = offset;
+        }
+
+        public synchronized void cancel(long offset) {
+            this.pendingOffsets.remove(offset);
+            this.consumedOffset = offset - 1;
+        }
+
+        public synchronized boolean acknowledge(long offset) {
+            this.pendingOffsets.remove(offset);
+            return this.pendingOffsets.isEmpty();
+        }
+
+        public synchronized long getCommitOffset() {
+            // Committed offset is the next offset to consume, the lowest pending offset or the offset after the last consumed event
+            if (this.consumedOffset < 0)
+                return -1;
+
+            return this.pendingOffsets.isEmpty() ? this.consumedOffset + 1 : this.pendingOffsets.first();
+        }
+
+        public synchronized long getPendingEvents() {
+            return this.pendingOffsets.size();
+        }
+    }
+
+
+    private class EventOffsetAcknowledgement implements EventAcknowledgement {
+        private EventPartitionOffsets offsets;
+        private long offset;
+
+        public EventOffsetAcknowledgement(EventPartitionOffsets offsets, long offset) {
+            this.offsets = offsets;
+            this.offset = offset;
+        }
+
+        public void acknowledge(boolean isWritten) {
+            // A failed event stays pending, the committed offset of its partition does not advance past it
+            if (!isWritten) {
+                failedEvents.incrementAndGet();
+                signal();
+            }
+            else if (this.offsets.acknowledge(this.offset))
+                signal();
+        }
+    }
+
+}
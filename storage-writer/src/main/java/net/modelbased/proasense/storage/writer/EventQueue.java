@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+
+import java.util.concurrent.TimeUnit;
+
+
+public interface EventQueue {
+
+    // Producers hand events to the writers through an event queue, writers consume their own partition queue
+    void put(EventDocument eventDocument) throws InterruptedException;
+
+    boolean offer(EventDocument eventDocument);
+
+    boolean offer(EventDocument eventDocument, long timeout, TimeUnit unit) throws InterruptedException;
+
+}
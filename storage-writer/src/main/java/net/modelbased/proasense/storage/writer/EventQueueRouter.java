@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+public class EventQueueRouter implements EventQueue {
+    public static String QUEUE_ARRAY = "array";
+    public static String QUEUE_RING = "ring";
+
+    private List<BlockingQueue<EventDocument>> partitions;
+
+
+    public EventQueueRouter(int noPartitions, int partitionSize) {
+        this.partitions = new ArrayList<BlockingQueue<EventDocument>>(noPartitions);
+
+        for (int i = 0; i < noPartitions; i++)
+            this.partitions.add(new ArrayBlockingQueue<EventDocument>(partitionSize));
+    }
+
+
+    public EventQueueRouter(List<BlockingQueue<EventDocument>> partitions) {
+        this.partitions = partitions;
+    }
+
+
+    public static EventQueueRouter createRouter(String queueType, String waitStrategy, int noPartitions, int partitionSize) {
+        // Default partitions are array blocking queues, ring buffers are pre-allocated with a consumer wait strategy
+        if (!QUEUE_RING.equals(queueType))
+            return new EventQueueRouter(noPartitions, partitionSize);
+
+        List<BlockingQueue<EventDocument>> partitions = new ArrayList<BlockingQueue<EventDocument>>(noPartitions);
+        for (int i = 0; i < noPartitions; i++)
+            partitions.add(new EventRingBuffer<EventDocument>(partitionSize, EventRingBuffer.parseWaitStrategy(waitStrategy)));
+
+        return new EventQueueRouter(partitions);
+    }
+
+
+    public int getPartitionCount() {
+        return this.partitions.size();
+    }
+
+
+    // Events are consumed from the partition queues by the writers, one writer per partition
+    public BlockingQueue<EventDocument> getPartition(int partition) {
+        return this.partitions.get(partition);
+    }
+
+
+    public int getPartitionIndex(String collectionId) {
+        // All events of a collection are routed to the same writer
+        return (collectionId.hashCode() & 0x7fffffff) % this.partitions.size();
+    }
+
+
+    public void put(EventDocument eventDocument) throws InterruptedException {
+        this.partitions.get(getPartitionIndex(eventDocument.getCollectionId())).put(eventDocument);
+    }
+
+
+    public boolean offer(EventDocument eventDocument) {
+        return this.partitions.get(getPartitionIndex(eventDocument.getCollectionId())).offer(eventDocument);
+    }
+
+
+    public boolean offer(EventDocument eventDocument, long timeout, TimeUnit unit) throws InterruptedException {
+        return this.partitions.get(getPartitionIndex(eventDocument.getCollectionId())).offer(eventDocument, timeout, unit);
+    }
+
+
+    public int remainingCapacity() {
+        int remainingCapacity = 0;
+        for (BlockingQueue<EventDocument> partition : this.partitions)
+            remainingCapacity = remainingCapacity + partition.remainingCapacity();
+
+        return remainingCapacity;
+    }
+
+
+    public int size() {
+        int size = 0;
+        for (BlockingQueue<EventDocument> partition : this.partitions)
+            size = size + partition.size();
+
+        return size;
+    }
+
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class EventRingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private static int SPIN_TRIES = 100;
+    private static int YIELD_TRIES = 200;
+    private static long SLEEP_NANOS = 100000;
+
+    private AtomicReferenceArray<E> buffer;
+    private int capacity;
+    private int mask;
+    private EventWaitStrategy waitStrategy;
+
+    // Producers claim slots by advancing the tail, the single consumer releases slots by advancing the head
+    private AtomicLong tail = new AtomicLong(0);
+    private AtomicLong head = new AtomicLong(0);
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private volatile boolean isConsumerWaiting = false;
+
+
+    public EventRingBuffer(int size, EventWaitStrategy waitStrategy) {
+        // Ring size is rounded up to a power of two so slots are found by masking the sequence
+        this.capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new AtomicReferenceArray<E>(this.capacity);
+        this.waitStrategy = waitStrategy;
+    }
+
+
+    public static EventWaitStrategy parseWaitStrategy(String waitStrategy) {
+        return EventWaitStrategy.valueOf(waitStrategy.trim().toUpperCase());
+    }
+
+
+    public EventWaitStrategy getWaitStrategy() {
+        return this.waitStrategy;
+    }
+
+
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        // Claim the next sequence unless the ring is full
+        long sequence;
+        do {
+            sequence = this.tail.get();
+            if (sequence - this.head.get() >= this.capacity)
+                return false;
+        } while (!this.tail.compareAndSet(sequence, sequence + 1));
+
+        // Publishing the slot makes the event visible to the consumer
+        this.buffer.set((int)(sequence & this.mask), e);
+        signalConsumer();
+
+        return true;
+    }
+
+
+    public void put(E e) throws InterruptedException {
+        // Producers back off while the ring is full, the consumer frees slots in batches
+        int tries = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            tries = backoff(tries);
+        }
+    }
+
+
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        int tries = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (deadline - System.nanoTime() <= 0)
+                return false;
+            tries = backoff(tries);
+        }
+
+        return true;
+    }
+
+
+    // Only one consumer thread may call poll(), take() and drainTo() on a ring buffer
+    public E poll() {
+        long sequence = this.head.get();
+        int index = (int)(sequence & this.mask);
+
+        // A claimed slot is not available until the producer has published the event
+        E e = this.buffer.get(index);
+        if (e == null)
+            return null;
+
+        this.buffer.lazySet(index, null);
+        this.head.lazySet(sequence + 1);
+
+        return e;
+    }
+
+
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null)
+            awaitEvent(false, 0);
+
+        return e;
+    }
+
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        E e;
+        while ((e = poll()) == null) {
+            if (!awaitEvent(true, deadline))
+                return null;
+        }
+
+        return e;
+    }
+
+
+    public E peek() {
+        return this.buffer.get((int)(this.head.get() & this.mask));
+    }
+
+
+    public int drainTo(Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        if (collection == this)
+            throw new IllegalArgumentException();
+
+        // Consume a batch of published events and release all slots with a single head update
+        long sequence = this.head.get();
+        int count = 0;
+        while (count < maxElements) {
+            int index = (int)((sequence + count) & this.mask);
+            E e = this.buffer.get(index);
+            if (e == null)
+                break;
+
+            collection.add(e);
+            this.buffer.lazySet(index, null);
+            count++;
+        }
+
+        if (count > 0)
+            this.head.lazySet(sequence + count);
+
+        return count;
+    }
+
+
+    public int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int)Math.max(0, Math.min(size, this.capacity));
+    }
+
+
+    public int remainingCapacity() {
+        return this.capacity - size();
+    }
+
+
+    public Iterator<E> iterator() {
+        // Weakly consistent snapshot of the published events, slots consumed or claimed meanwhile are skipped
+        List<E> snapshot = new ArrayList<E>();
+
+        long sequence = this.head.get();
+        long tail = this.tail.get();
+        for (; sequence < tail; sequence++) {
+            E e = this.buffer.get((int)(sequence & this.mask));
+            if (e != null)
+                snapshot.add(e);
+        }
+
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+
+    private boolean awaitEvent(boolean isTimed, long deadline) throws InterruptedException {
+        int tries = 0;
+        while (peek() == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            long remaining = deadline - System.nanoTime();
+            if (isTimed && (remaining <= 0))
+                return false;
+
+            if (this.waitStrategy.equals(EventWaitStrategy.BLOCKING)) {
+                this.lock.lock();
+                try {
+                    // Producers only take the lock when the consumer has announced that it is waiting
+                    this.isConsumerWaiting = true;
+                    if (peek() == null) {
+                        if (isTimed)
+                            this.notEmpty.awaitNanos(remaining);
+                        else
+                            this.notEmpty.await();
+                    }
+                } finally {
+                    this.isConsumerWaiting = false;
+                    this.lock.unlock();
+                }
+            }
+            else if (this.waitStrategy.equals(EventWaitStrategy.SLEEPING))
+                tries = backoff(tries);
+            else if (this.waitStrategy.equals(EventWaitStrategy.YIELDING)) {
+                if (tries < SPIN_TRIES)
+                    tries++;
+                else
+                    Thread.yield();
+            }
+        }
+
+        return true;
+    }
+
+
+    private void signalConsumer() {
+        if (this.isConsumerWaiting) {
+            this.lock.lock();
+            try {
+                this.notEmpty.signal();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+
+    private int backoff(int tries) {
+        // Spin first, then yield, then sleep for short periods
+        if (tries < SPIN_TRIES)
+            return tries + 1;
+        else if (tries < YIELD_TRIES) {
+            Thread.yield();
+            return tries + 1;
+        }
+
+        LockSupport.parkNanos(SLEEP_NANOS);
+        return tries;
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventDocumentConverter;
+import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventStorageProfile;
+
+import eu.proasense.internal.AnomalyEvent;
+import eu.proasense.internal.DerivedEvent;
+import eu.proasense.internal.FeedbackEvent;
+import eu.proasense.internal.PredictedEvent;
+import eu.proasense.internal.RecommendationEvent;
+import eu.proasense.internal.SimpleEvent;
+
+
+public abstract class EventTypeHandler<T> {
+    protected EventStorageProfile profile;
+
+
+    protected EventTypeHandler(EventStorageProfile profile) {
+        this.profile = profile;
+    }
+
+
+    public abstract T createEvent();
+
+
+    public abstract EventDocument createDocument(T event, byte[] serializedEvent);
+
+
+    @SuppressWarnings("unchecked")
+    public static <T> EventTypeHandler<T> createHandler(Class<T> eventType, EventStorageProfile profile) {
+        // Event type is resolved once per listener, messages are then handled without class name checks or reflection
+        // Received message bytes are passed through and stored as the serialized event
+        if (eventType.equals(SimpleEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<SimpleEvent>(profile) {
+                public SimpleEvent createEvent() {
+                    return new SimpleEvent();
+                }
+
+                public EventDocument createDocument(SimpleEvent event, byte[] serializedEvent) {
+                    // Encoded directly to BSON by the writer, the document is only built if needed
+                    return new EventDocument(EventProperties.SIMPLEEVENT_STORAGE_COLLECTION_PREFIX + event.getSensorId(), event, this.profile, serializedEvent);
+                }
+            };
+
+        if (eventType.equals(DerivedEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<DerivedEvent>(profile) {
+                public DerivedEvent createEvent() {
+                    return new DerivedEvent();
+                }
+
+                public EventDocument createDocument(DerivedEvent event, byte[] serializedEvent) {
+                    // Encoded directly to BSON by the writer, the document is only built if needed
+                    return new EventDocument(EventProperties.DERIVEDEVENT_STORAGE_COLLECTION_PREFIX + event.getComponentId(), event, this.profile, serializedEvent);
+                }
+            };
+
+        if (eventType.equals(PredictedEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<PredictedEvent>(profile) {
+                public PredictedEvent createEvent() {
+                    return new PredictedEvent();
+                }
+
+                public EventDocument createDocument(PredictedEvent event, byte[] serializedEvent) {
+                    EventDocumentConverter converter = new EventDocumentConverter(event, this.profile, serializedEvent);
+                    return new EventDocument(converter.getCollectionId(), converter.getDocument());
+                }
+            };
+
+        if (eventType.equals(AnomalyEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<AnomalyEvent>(profile) {
+                public AnomalyEvent createEvent() {
+                    return new AnomalyEvent();
+                }
+
+                public EventDocument createDocument(AnomalyEvent event, byte[] serializedEvent) {
+                    EventDocumentConverter converter = new EventDocumentConverter(event, this.profile, serializedEvent);
+                    return new EventDocument(converter.getCollectionId(), converter.getDocument());
+                }
+            };
+
+        if (eventType.equals(RecommendationEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<RecommendationEvent>(profile) {
+                public RecommendationEvent createEvent() {
+                    return new RecommendationEvent();
+                }
+
+                public EventDocument createDocument(RecommendationEvent event, byte[] serializedEvent) {
+                    EventDocumentConverter converter = new EventDocumentConverter(event, this.profile, serializedEvent);
+                    return new EventDocument(converter.getCollectionId(), converter.getDocument());
+                }
+            };
+
+        if (eventType.equals(FeedbackEvent.class))
+            return (EventTypeHandler<T>)new EventTypeHandler<FeedbackEvent>(profile) {
+                public FeedbackEvent createEvent() {
+                    return new FeedbackEvent();
+                }
+
+                public EventDocument createDocument(FeedbackEvent event, byte[] serializedEvent) {
+                    EventDocumentConverter converter = new EventDocumentConverter(event, this.profile, serializedEvent);
+                    return new EventDocument(converter.getCollectionId(), converter.getDocument());
+                }
+            };
+
+        throw new IllegalArgumentException("Unsupported event type: " + eventType.getName());
+    }
+
+}
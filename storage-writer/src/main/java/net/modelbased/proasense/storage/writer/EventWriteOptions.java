@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import com.mongodb.MongoClientURI;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+public class EventWriteOptions {
+    public static String[] EVENT_TYPES = new String[] { "simple", "derived", "predicted", "anomaly", "recommendation", "feedback" };
+
+    private static EventWriteOptions DEFAULT_OPTIONS = new EventWriteOptions(true, null, false);
+
+    private boolean isOrdered;
+    private WriteConcern writeConcern;
+    private boolean isBypassValidation;
+
+
+    public EventWriteOptions(boolean isOrdered, WriteConcern writeConcern, boolean isBypassValidation) {
+        this.isOrdered = isOrdered;
+        this.writeConcern = writeConcern;
+        this.isBypassValidation = isBypassValidation;
+    }
+
+
+    public static Map<String, EventWriteOptions> createWriteOptions(Properties serverProperties) {
+        // Write options are configured per event type, event types without configuration use the driver defaults
+        Map<String, EventWriteOptions> writeOptions = new HashMap<String, EventWriteOptions>();
+        for (String eventType : EVENT_TYPES) {
+            String options = serverProperties.getProperty("proasense.storage.mongodb.write." + eventType, "");
+            if (!options.trim().isEmpty())
+                writeOptions.put(eventType, parseWriteOptions(options));
+        }
+
+        return writeOptions;
+    }
+
+
+    public static EventWriteOptions parseWriteOptions(String options) {
+        boolean isOrdered = true;
+        String w = null;
+        boolean isJournal = false;
+        boolean isBypassValidation = false;
+
+        // Comma separated options, e.g. ordered=false,w=majority,j=true,bypass=false
+        for (String option : options.split(",")) {
+            String[] keyValue = option.trim().split("=");
+            if (keyValue.length != 2)
+                throw new IllegalArgumentException("Invalid write option: " + option);
+
+            String key = keyValue[0].trim();
+            String value = keyValue[1].trim();
+            if (key.equals("ordered"))
+                isOrdered = new Boolean(value).booleanValue();
+            else if (key.equals("w"))
+                w = value;
+            else if (key.equals("j"))
+                isJournal = new Boolean(value).booleanValue();
+            else if (key.equals("bypass"))
+                isBypassValidation = new Boolean(value).booleanValue();
+            else
+                throw new IllegalArgumentException("Invalid write option: " + option);
+        }
+
+        // Options without w or j keep the write concern of the MongoDB url
+        WriteConcern writeConcern = null;
+        if (w != null)
+            writeConcern = w.equals("majority") ? WriteConcern.MAJORITY : new WriteConcern(new Integer(w).intValue());
+        if (isJournal)
+            writeConcern = ((writeConcern == null) ? WriteConcern.ACKNOWLEDGED : writeConcern).withJournal(true);
+
+        return new EventWriteOptions(isOrdered, writeConcern, isBypassValidation);
+    }
+
+
+    public static void checkAcknowledged(Map<String, EventWriteOptions> writeOptions, String mongoURL) {
+        // Unacknowledged writes (w=0) never report a failed write, events would be committed to Kafka before they are stored
+        WriteConcern urlWriteConcern = new MongoClientURI(mongoURL).getOptions().getWriteConcern();
+        for (String eventType : EVENT_TYPES) {
+            WriteConcern writeConcern = getWriteOptions(writeOptions, eventType).getWriteConcern();
+            if ((writeConcern == null) && !urlWriteConcern.isAcknowledged())
+                throw new IllegalArgumentException("Unacknowledged write concern w=0 of the MongoDB url for " + eventType + " events is not supported with acknowledged offset commits");
+            if ((writeConcern != null) && !writeConcern.isAcknowledged())
+                throw new IllegalArgumentException("Unacknowledged write option w=0 for " + eventType + " events is not supported with acknowledged offset commits");
+        }
+    }
+
+
+    public static EventWriteOptions getWriteOptions(Map<String, EventWriteOptions> writeOptions, String collectionId) {
+        // Collection ids are prefixed with the event type, e.g. simple.<sensorId> or feedback.system
+        int separator = collectionId.indexOf('.');
+        String eventType = (separator < 0) ? collectionId : collectionId.substring(0, separator);
+
+        EventWriteOptions options = writeOptions.get(eventType);
+        if (options == null)
+            return DEFAULT_OPTIONS;
+
+        return options;
+    }
+
+
+    public boolean isOrdered() {
+        return this.isOrdered;
+    }
+
+
+    public WriteConcern getWriteConcern() {
+        // Null keeps the write concern of the MongoDB url
+        return this.writeConcern;
+    }
+
+
+    public InsertManyOptions getInsertManyOptions() {
+        return new InsertManyOptions().ordered(this.isOrdered).bypassDocumentValidation(this.isBypassValidation);
+    }
+
+
+    public BulkWriteOptions getBulkWriteOptions(boolean isOrdered) {
+        // Bulk updates set their own ordering, retried bucket updates are unordered like retried inserts
+        return new BulkWriteOptions().ordered(isOrdered).bypassDocumentValidation(this.isBypassValidation);
+    }
+
+
+    public String toString() {
+        return "ordered=" + this.isOrdered + "," + ((this.writeConcern == null) ? "url write concern" : this.writeConcern) + ",bypass=" + this.isBypassValidation;
+    }
+
+}
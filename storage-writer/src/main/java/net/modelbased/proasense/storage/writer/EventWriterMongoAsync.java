@@ -17,16 +17,29 @@
  */
 package net.modelbased.proasense.storage.writer;
 
+import net.modelbased.proasense.storage.EventBucketLayout;
 import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventDocumentCodec;
 import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventRollup;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.WriteConcern;
 import com.mongodb.async.SingleResultCallback;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.async.client.MongoClient;
 import com.mongodb.async.client.MongoClients;
 import com.mongodb.async.client.MongoCollection;
 import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.result.UpdateResult;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
 
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
@@ -34,11 +47,17 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class EventWriterMongoAsync implements Runnable {
@@ -48,12 +67,27 @@ public class EventWriterMongoAsync implements Runnable {
     private String mongoURL;
     private int bulkSize;
     private int maxWait;
+    private int bulkBytes = EventFlushPolicy.DEFAULT_BULK_BYTES;
     private boolean isLogfile;
     private int logSize;
     private Writer logfileWriter;
     private int threadNumber;
     private boolean isLoadTest = false;
     private int loadTestMaxMessages;
+    private List<EventRollup> rollups = new ArrayList<EventRollup>();
+    private EventBucketLayout bucketLayout;
+    private CodecRegistry codecRegistry;
+    private Map<String, EventWriteOptions> writeOptions = new HashMap<String, EventWriteOptions>();
+    private int maxInFlight = 4;
+    private int maxRetries = 3;
+    private long retryDelay = 1000;
+    private Map<String, List<UpdateOneModel<Document>>> rollupGaps = new HashMap<String, List<UpdateOneModel<Document>>>();
+    private Semaphore inFlightWrites;
+    private ScheduledExecutorService retryExecutor;
+    private AtomicLong completedWrites = new AtomicLong();
+    private AtomicLong failedWrites = new AtomicLong();
+    private AtomicLong retriedWrites = new AtomicLong();
+    private AtomicLong writtenEvents = new AtomicLong();
 
 
     public EventWriterMongoAsync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait) {
@@ -100,11 +134,56 @@ public class EventWriterMongoAsync implements Runnable {
     }
 
 
+    public EventWriterMongoAsync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait, boolean isLogfile, int logSize, int threadNumber, List<EventRollup> rollups, EventBucketLayout bucketLayout, int bulkBytes, int maxInFlight, int maxRetries, long retryDelay, Map<String, EventWriteOptions> writeOptions) {
+        this.queue = queue;
+        this.mongoURL = mongoURL;
+        this.bulkSize = bulkSize;
+        this.maxWait = maxWait;
+        this.isLogfile = isLogfile;
+        this.logSize = logSize;
+        this.threadNumber = threadNumber;
+        this.rollups = rollups;
+        this.bucketLayout = bucketLayout;
+        this.bulkBytes = bulkBytes;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.writeOptions = writeOptions;
+    }
+
+
+    public EventWriterMongoAsync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait, boolean isLogfile, int logSize, int threadNumber, int loadTestMaxMessages, List<EventRollup> rollups, EventBucketLayout bucketLayout, int bulkBytes, int maxInFlight, int maxRetries, long retryDelay, Map<String, EventWriteOptions> writeOptions) {
+        this.queue = queue;
+        this.mongoURL = mongoURL;
+        this.bulkSize = bulkSize;
+        this.maxWait = maxWait;
+        this.isLogfile = isLogfile;
+        this.logSize = logSize;
+        this.threadNumber = threadNumber;
+        this.isLoadTest = true;
+        this.loadTestMaxMessages = loadTestMaxMessages;
+        this.rollups = rollups;
+        this.bucketLayout = bucketLayout;
+        this.bulkBytes = bulkBytes;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.writeOptions = writeOptions;
+    }
+
+
     public void run() {
         // Connect to MongoDB database
         MongoClient mongoClient = MongoClients.create(mongoURL);
         MongoDatabase database = mongoClient.getDatabase(EventProperties.STORAGE_DATABASE_NAME);
 
+        // Event documents are encoded directly to BSON when inserted
+        this.codecRegistry = EventDocumentCodec.createCodecRegistry(database.getCodecRegistry());
+
+        // Writes in flight are bounded, the writer blocks and the queue fills up when MongoDB falls behind
+        this.inFlightWrites = new Semaphore(this.maxInFlight);
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor();
+
         // Create hash map of collections
         Map<String, MongoCollection<Document>> collectionMap = new HashMap<String, MongoCollection<Document>>();
 
@@ -112,107 +191,103 @@ public class EventWriterMongoAsync implements Runnable {
         long timer0 = System.currentTimeMillis();
         long timer1 = timer0;
         long timer2 = timer0;
-        boolean skipLog = false;
 
-        Map<String, List<Document>> documentMap = new HashMap<String, List<Document>>();
+        Map<String, List<EventDocument>> documentMap = new HashMap<String, List<EventDocument>>();
         try {
             if (isLogfile)
                 logfileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("EventWriterMongoAsync_benchmark_" + this.threadNumber + ".txt"), "ISO-8859-1"));
 
-            while (true) {
-                long timeoutExpired = System.currentTimeMillis() + this.maxWait;
-                EventDocument eventDocument = queue.take();
+            // Flush policy bounds pending documents by count, estimated size and age of the oldest event
+            EventFlushPolicy flushPolicy = new EventFlushPolicy(this.bulkSize, this.bulkBytes, this.maxWait);
+            List<EventDocument> batch = new ArrayList<EventDocument>(this.bulkSize);
 
-                String collectionId = eventDocument.getCollectionId();
+            while (true) {
+                // Wait for the next event, but no longer than until the oldest pending event is due to be written
+                EventDocument eventDocument;
+                if (flushPolicy.getPendingDocuments() == 0)
+                    eventDocument = queue.take();
+                else
+                    eventDocument = queue.poll(Math.max(flushPolicy.getFlushDeadline() - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
 
-                if (!collectionId.matches(EventProperties.STORAGE_HEARTBEAT)) {
-                    cnt++;
-                    skipLog = false;
+                // Drain the events already queued without blocking
+                if (eventDocument != null) {
+                    batch.add(eventDocument);
+                    queue.drainTo(batch, this.bulkSize - 1);
                 }
-                else
-                    skipLog = true;
 
-                // Add data for bulk write
-                if (!collectionId.matches(EventProperties.STORAGE_HEARTBEAT)) {
-                    Document document = eventDocument.getDocument();
+                long now = System.currentTimeMillis();
 
+                for (EventDocument batchDocument : batch) {
+                    String collectionId = batchDocument.getCollectionId();
+
+                    cnt++;
+
+                    // Add data for bulk write
                     if (!collectionMap.containsKey(collectionId)) {
-                        collectionMap.put(collectionId, database.getCollection(collectionId));
-                        List<Document> documentList = new ArrayList<Document>();
+                        WriteConcern writeConcern = getWriteOptions(collectionId).getWriteConcern();
+                        collectionMap.put(collectionId, (writeConcern == null) ? database.getCollection(collectionId) : database.getCollection(collectionId).withWriteConcern(writeConcern));
+                        List<EventDocument> documentList = new ArrayList<EventDocument>();
                         documentMap.put(collectionId, documentList);
                     }
 
-                    documentMap.get(collectionId).add(document);
-                }
-                // Write data if heartbeat timeout is received
-                else {
-                    for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
-                        String key = entry.getKey();
-                        if (!documentMap.get(key).isEmpty()) {
-                            collectionMap.get(key).insertMany(documentMap.get(key), new SingleResultCallback<Void>() {
-//                                @Override
-                                public void onResult(final Void result, final Throwable t) {
-                                }
-                            });
-                            documentMap.get(key).clear();
-                        }
-                    }
-                }
+                    documentMap.get(collectionId).add(batchDocument);
+                    flushPolicy.add(batchDocument);
 
-                // Write data if bulk size or max wait (ms) is reached
-                if ((cnt % this.bulkSize == 0) || (System.currentTimeMillis() >= timeoutExpired)) {
-                    for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
-                        String key = entry.getKey();
-                        if (!documentMap.get(key).isEmpty()) {
-                            collectionMap.get(key).insertMany(documentMap.get(key), new SingleResultCallback<Void>() {
-//                                @Override
-                                public void onResult(final Void result, final Throwable t) {
-                                }
-                            });
-                            documentMap.get(key).clear();
-                        }
+                    // Write data if bulk size, bulk bytes or max wait (ms) of the oldest pending event is reached
+                    if (flushPolicy.isFlushRequired(now)) {
+                        writePending(database, collectionMap, documentMap);
+                        flushPolicy.reset();
                     }
-                }
-
-                // Benchmark output
-                if ((!skipLog) && (cnt % this.logSize == 0)) {
-                    timer2 = System.currentTimeMillis();
-                    long difference = timer2 - timer1;
-
-                    if (difference != 0) {
-                        long average = (this.logSize * 1000) / (timer2 - timer1);
-
-                        System.out.println("Benchmark: ");
-                        System.out.println("  Records written  : " + cnt);
-                        System.out.println("  Average records/s: " + average);
-                        timer1 = timer2;
 
-                        if (isLogfile) {
-                            logfileWriter.write(cnt + "," + average + System.getProperty("line.separator"));
-                            logfileWriter.flush();
-                        }
+                    // Benchmark output
+                    if (cnt % this.logSize == 0) {
+                        timer2 = System.currentTimeMillis();
+                        long difference = timer2 - timer1;
 
-                        if (cnt == this.loadTestMaxMessages) {
-                            long loadTestStart = timer0 / 1000;
-                            long loadTestEnd = timer2 / 1000;
-                            long loadTestTime = loadTestEnd - loadTestStart;
-                            long loadTestAverage = this.loadTestMaxMessages / loadTestTime;
+                        if (difference != 0) {
+                            long average = (this.logSize * 1000) / (timer2 - timer1);
 
-                            System.out.println("*****************************");
-                            System.out.println("Load test results: ");
+                            System.out.println("Benchmark: ");
                             System.out.println("  Records written  : " + cnt);
-                            System.out.println("  Average records/s: " + loadTestAverage);
+                            System.out.println("  Average records/s: " + average);
+                            System.out.println("  Write batches    : " + getWriteStatistics());
+                            timer1 = timer2;
 
                             if (isLogfile) {
-                                logfileWriter.write("*****************************" + System.getProperty("line.separator"));
-                                logfileWriter.write("Load test results: " + System.getProperty("line.separator"));
-                                logfileWriter.write("  Records written  : " + cnt + System.getProperty("line.separator"));
-                                logfileWriter.write("  Average records/s: " + loadTestAverage + System.getProperty("line.separator"));
+                                logfileWriter.write(cnt + "," + average + System.getProperty("line.separator"));
                                 logfileWriter.flush();
                             }
+
+                            if (cnt == this.loadTestMaxMessages) {
+                                long loadTestStart = timer0 / 1000;
+                                long loadTestEnd = timer2 / 1000;
+                                long loadTestTime = loadTestEnd - loadTestStart;
+                                long loadTestAverage = this.loadTestMaxMessages / loadTestTime;
+
+                                System.out.println("*****************************");
+                                System.out.println("Load test results: ");
+                                System.out.println("  Records written  : " + cnt);
+                                System.out.println("  Average records/s: " + loadTestAverage);
+
+                                if (isLogfile) {
+                                    logfileWriter.write("*****************************" + System.getProperty("line.separator"));
+                                    logfileWriter.write("Load test results: " + System.getProperty("line.separator"));
+                                    logfileWriter.write("  Records written  : " + cnt + System.getProperty("line.separator"));
+                                    logfileWriter.write("  Average records/s: " + loadTestAverage + System.getProperty("line.separator"));
+                                    logfileWriter.flush();
+                                }
+                            }
                         }
                     }
                 }
+
+                batch.clear();
+
+                // Write data if max wait (ms) of the oldest pending event is reached
+                if (flushPolicy.isFlushRequired(System.currentTimeMillis())) {
+                    writePending(database, collectionMap, documentMap);
+                    flushPolicy.reset();
+                }
             }
         } catch (InterruptedException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -228,8 +303,295 @@ public class EventWriterMongoAsync implements Runnable {
                 }
         }
 
+        // Wait for writes in flight, including pending retries, before closing the client
+        try {
+            if (!inFlightWrites.tryAcquire(this.maxInFlight, this.retryDelay * (this.maxRetries + 1) + 30000, TimeUnit.MILLISECONDS))
+                System.out.println("EventWriterMongoAsync: " + (this.maxInFlight - inFlightWrites.availablePermits()) + " writes still in flight at shutdown");
+        } catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        retryExecutor.shutdownNow();
         mongoClient.close();
 
     }
 
+
+    private void writePending(MongoDatabase database, Map<String, MongoCollection<Document>> collectionMap, Map<String, List<EventDocument>> documentMap) throws InterruptedException {
+        for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
+            String key = entry.getKey();
+            if (!documentMap.get(key).isEmpty()) {
+                // Indexes are created when a collection is first written, failed index builds are retried on a later write
+                EventIndexManager.ensureIndexes(collectionMap.get(key), key, isBucketWrite(key));
+
+                // Rollup updates are built before the write is dispatched and only written once it succeeds
+                List<EventRollupWrite> rollupWrites = createRollupWrites(database, key, documentMap.get(key));
+                writeDocuments(collectionMap.get(key), key, documentMap.get(key), rollupWrites);
+
+                // Written lists are owned by the write until it completes, start a new list instead of clearing
+                documentMap.put(key, new ArrayList<EventDocument>());
+            }
+        }
+    }
+
+
+    private void writeDocuments(MongoCollection<Document> collection, String collectionId, final List<EventDocument> eventDocuments, final List<EventRollupWrite> rollupWrites) throws InterruptedException {
+        // Pack simple events into time bucket documents if enabled, bucket updates are only retried once the unique index on batch ids exists
+        if (isBucketWrite(collectionId)) {
+            inFlightWrites.acquire();
+            updateBuckets(collection, getWriteOptions(collectionId), bucketLayout.createUpdates(getDocuments(eventDocuments)), EventIndexManager.isCreated(collectionId), eventDocuments, rollupWrites, 0);
+        }
+        else {
+            inFlightWrites.acquire();
+            insertDocuments(collection.withDocumentClass(EventDocument.class).withCodecRegistry(this.codecRegistry), getWriteOptions(collectionId), eventDocuments, rollupWrites, 0);
+        }
+    }
+
+
+    private void insertDocuments(final MongoCollection<EventDocument> collection, final EventWriteOptions options, final List<EventDocument> eventDocuments, final List<EventRollupWrite> rollupWrites, final int attempt) {
+        // Retries are unordered, events inserted by an earlier attempt keep their id and only fail with duplicate key
+        InsertManyOptions insertOptions = options.getInsertManyOptions().ordered(options.isOrdered() && (attempt == 0));
+        collection.insertMany(eventDocuments, insertOptions, new SingleResultCallback<Void>() {
+//            @Override
+            public void onResult(final Void result, final Throwable t) {
+                if ((t == null) || ((attempt > 0) && isDuplicateKeyOnly(t))) {
+                    completeWrite(null, eventDocuments, rollupWrites);
+                    return;
+                }
+
+                if (attempt >= maxRetries) {
+                    completeWrite(t, eventDocuments, rollupWrites);
+                    return;
+                }
+
+                // Failed batch keeps its in-flight permit until the retry completes
+                retriedWrites.incrementAndGet();
+                System.out.println(t.getClass().getName() + ": " + t.getMessage() + " (retry " + (attempt + 1) + " of " + maxRetries + ")");
+                retryExecutor.schedule(new Runnable() {
+                    public void run() {
+                        insertDocuments(collection, options, eventDocuments, rollupWrites, attempt + 1);
+                    }
+                }, retryDelay * (attempt + 1), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+
+    private void updateBuckets(final MongoCollection<Document> collection, final EventWriteOptions options, final List<UpdateOneModel<Document>> bucketUpdates, final boolean isRetried, final List<EventDocument> eventDocuments, final List<EventRollupWrite> rollupWrites, final int attempt) {
+        // Retries are unordered, bucket updates applied by an earlier attempt only fail with duplicate key
+        collection.bulkWrite(bucketUpdates, options.getBulkWriteOptions(options.isOrdered() && (attempt == 0)), new SingleResultCallback<BulkWriteResult>() {
+//            @Override
+            public void onResult(final BulkWriteResult result, final Throwable t) {
+                if ((t == null) || ((attempt > 0) && isDuplicateKeyOnly(t))) {
+                    completeWrite(null, eventDocuments, rollupWrites);
+                    return;
+                }
+
+                if (!isRetried || (attempt >= maxRetries)) {
+                    completeWrite(t, eventDocuments, rollupWrites);
+                    return;
+                }
+
+                retriedWrites.incrementAndGet();
+                System.out.println(t.getClass().getName() + ": " + t.getMessage() + " (retry " + (attempt + 1) + " of " + maxRetries + ")");
+                retryExecutor.schedule(new Runnable() {
+                    public void run() {
+                        updateBuckets(collection, options, bucketUpdates, isRetried, eventDocuments, rollupWrites, attempt + 1);
+                    }
+                }, retryDelay * (attempt + 1), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+
+    private boolean isBucketWrite(String collectionId) {
+        return (bucketLayout != null) && EventBucketLayout.isBucketSource(collectionId);
+    }
+
+
+    private boolean isDuplicateKeyOnly(Throwable t) {
+        if (!(t instanceof MongoBulkWriteException))
+            return false;
+
+        for (BulkWriteError error : ((MongoBulkWriteException)t).getWriteErrors()) {
+            if (error.getCode() != 11000)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private void completeWrite(Throwable t, List<EventDocument> eventDocuments, List<EventRollupWrite> rollupWrites) {
+        if (t == null)
+            completedWrites.incrementAndGet();
+        else {
+            failedWrites.incrementAndGet();
+            System.out.println(t.getClass().getName() + ": " + t.getMessage());
+        }
+
+        // Events are acknowledged to their listener
+        if (t == null)
+            writtenEvents.addAndGet(eventDocuments.size());
+        for (EventDocument eventDocument : eventDocuments)
+            eventDocument.acknowledge(t == null);
+
+        // Rollups only count written events, the rollup tiers are written in turn under the permit of the event write
+        if ((t == null) && !rollupWrites.isEmpty())
+            writeRollup(rollupWrites, 0, 0);
+        else
+            inFlightWrites.release();
+    }
+
+
+    public String getWriteStatistics() {
+        return "completed " + completedWrites.get() + ", failed " + failedWrites.get() + ", retried " + retriedWrites.get()
+                + ", in flight " + (this.maxInFlight - inFlightWrites.availablePermits()) + ", events " + writtenEvents.get();
+    }
+
+
+    private List<EventRollupWrite> createRollupWrites(MongoDatabase database, String collectionId, List<EventDocument> eventDocuments) {
+        List<EventRollupWrite> rollupWrites = new ArrayList<EventRollupWrite>();
+        if (rollups.isEmpty() || !EventRollup.isRollupSource(collectionId))
+            return rollupWrites;
+
+        List<Document> documents = getDocuments(eventDocuments);
+
+        // One unordered bulk upsert per tier, with one batch id for all tiers so buckets already updated with it are skipped
+        ObjectId batchId = new ObjectId();
+        for (EventRollup rollup : rollups) {
+            String rollupCollectionId = rollup.getCollectionId(collectionId);
+            MongoCollection<Document> rollupCollection = database.getCollection(rollupCollectionId);
+            EventIndexManager.ensureIndexes(rollupCollection, rollupCollectionId);
+
+            rollupWrites.add(new EventRollupWrite(rollupCollectionId, rollupCollection, rollup, documents, batchId));
+        }
+
+        return rollupWrites;
+    }
+
+
+    private void writeRollup(final List<EventRollupWrite> rollupWrites, final int index, final int attempt) {
+        if (index >= rollupWrites.size()) {
+            inFlightWrites.release();
+            return;
+        }
+
+        // Buckets are read first, the mean and M2 of each property are merged with the batch
+        final EventRollupWrite rollupWrite = rollupWrites.get(index);
+        rollupWrite.collection.find(rollupWrite.rollup.createBucketFilter(rollupWrite.documents)).projection(rollupWrite.rollup.getBucketProjection()).into(new ArrayList<Document>(), new SingleResultCallback<List<Document>>() {
+//            @Override
+            public void onResult(final List<Document> buckets, final Throwable t) {
+                if (t != null) {
+                    retryRollup(rollupWrites, index, attempt, t);
+                    return;
+                }
+
+                // Gaps that could not be written earlier are written with the updates of the tier
+                final List<UpdateOneModel<Document>> gapUpdates = takeRollupGaps(rollupWrite.collectionId);
+                List<UpdateOneModel<Document>> updates = rollupWrite.rollup.createUpdates(rollupWrite.documents, rollupWrite.batchId, buckets);
+                updates.addAll(gapUpdates);
+                rollupWrite.collection.bulkWrite(updates, new BulkWriteOptions().ordered(false), new SingleResultCallback<BulkWriteResult>() {
+//                    @Override
+                    public void onResult(final BulkWriteResult result, final Throwable t) {
+                        if (t == null)
+                            writeRollup(rollupWrites, index + 1, 0);
+                        else {
+                            addRollupGaps(rollupWrite.collectionId, gapUpdates);
+                            retryRollup(rollupWrites, index, attempt, t);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    private void retryRollup(final List<EventRollupWrite> rollupWrites, final int index, final int attempt, Throwable t) {
+        // A bucket changed since it was read fails with duplicate key, the retry reads it again and skips buckets already updated
+        final EventRollupWrite rollupWrite = rollupWrites.get(index);
+        if (attempt >= maxRetries) {
+            failedWrites.incrementAndGet();
+            System.out.println(t.getClass().getName() + ": " + t.getMessage() + " (rollup " + rollupWrite.collectionId + ")");
+            writeRollupGap(rollupWrites, index);
+            return;
+        }
+
+        retriedWrites.incrementAndGet();
+        retryExecutor.schedule(new Runnable() {
+            public void run() {
+                writeRollup(rollupWrites, index, attempt + 1);
+            }
+        }, retryDelay * (attempt + 1), TimeUnit.MILLISECONDS);
+    }
+
+
+    private void writeRollupGap(final List<EventRollupWrite> rollupWrites, final int index) {
+        // The range of the batch is marked as not covered, the gap is written with the next batch of the tier if this write also fails
+        final EventRollupWrite rollupWrite = rollupWrites.get(index);
+        final UpdateOneModel<Document> gapUpdate = rollupWrite.rollup.createGapUpdate(rollupWrite.documents);
+        rollupWrite.collection.updateOne(gapUpdate.getFilter(), gapUpdate.getUpdate(), gapUpdate.getOptions(), new SingleResultCallback<UpdateResult>() {
+//            @Override
+            public void onResult(final UpdateResult result, final Throwable t) {
+                if (t != null) {
+                    System.out.println(t.getClass().getName() + ": " + t.getMessage() + " (rollup gap " + rollupWrite.collectionId + ")");
+                    addRollupGaps(rollupWrite.collectionId, Arrays.asList(gapUpdate));
+                }
+                writeRollup(rollupWrites, index + 1, 0);
+            }
+        });
+    }
+
+
+    private synchronized List<UpdateOneModel<Document>> takeRollupGaps(String rollupCollectionId) {
+        List<UpdateOneModel<Document>> gapUpdates = rollupGaps.remove(rollupCollectionId);
+        if (gapUpdates == null)
+            return new ArrayList<UpdateOneModel<Document>>();
+
+        return gapUpdates;
+    }
+
+
+    private synchronized void addRollupGaps(String rollupCollectionId, List<UpdateOneModel<Document>> gapUpdates) {
+        if (gapUpdates.isEmpty())
+            return;
+
+        if (!rollupGaps.containsKey(rollupCollectionId))
+            rollupGaps.put(rollupCollectionId, new ArrayList<UpdateOneModel<Document>>());
+        rollupGaps.get(rollupCollectionId).addAll(gapUpdates);
+    }
+
+
+    private EventWriteOptions getWriteOptions(String collectionId) {
+        return EventWriteOptions.getWriteOptions(this.writeOptions, collectionId);
+    }
+
+
+    private List<Document> getDocuments(List<EventDocument> eventDocuments) {
+        // Documents are only built for bucket layout and rollups, inserted events are encoded by EventDocumentCodec
+        List<Document> documents = new ArrayList<Document>(eventDocuments.size());
+        for (EventDocument eventDocument : eventDocuments)
+            documents.add(eventDocument.getDocument());
+
+        return documents;
+    }
+
+
+
+    private static class EventRollupWrite {
+        private String collectionId;
+        private MongoCollection<Document> collection;
+        private EventRollup rollup;
+        private List<Document> documents;
+        private ObjectId batchId;
+
+        public EventRollupWrite(String collectionId, MongoCollection<Document> collection, EventRollup rollup, List<Document> documents, ObjectId batchId) {
+            this.collectionId = collectionId;
+            this.collection = collection;
+            this.rollup = rollup;
+            this.documents = documents;
+            this.batchId = batchId;
+        }
+    }
+
 }
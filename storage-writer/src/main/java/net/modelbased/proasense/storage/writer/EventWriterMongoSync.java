@@ -17,15 +17,27 @@
  */
 package net.modelbased.proasense.storage.writer;
 
+import net.modelbased.proasense.storage.EventBucketLayout;
 import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventDocumentCodec;
 import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventRollup;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
 
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
@@ -33,11 +45,13 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class EventWriterMongoSync implements Runnable {
@@ -47,12 +61,20 @@ public class EventWriterMongoSync implements Runnable {
     private String mongoURL;
     private int bulkSize;
     private int maxWait;
+    private int bulkBytes = EventFlushPolicy.DEFAULT_BULK_BYTES;
     private boolean isLogfile;
     private int logSize;
     private Writer logfileWriter;
     private int threadNumber;
     private boolean isLoadTest = false;
     private int loadTestMaxMessages;
+    private List<EventRollup> rollups = new ArrayList<EventRollup>();
+    private EventBucketLayout bucketLayout;
+    private CodecRegistry codecRegistry;
+    private Map<String, EventWriteOptions> writeOptions = new HashMap<String, EventWriteOptions>();
+    private int maxRetries = 3;
+    private long retryDelay = 1000;
+    private Map<String, List<UpdateOneModel<Document>>> rollupGaps = new HashMap<String, List<UpdateOneModel<Document>>>();
 
 
     public EventWriterMongoSync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait) {
@@ -99,11 +121,50 @@ public class EventWriterMongoSync implements Runnable {
     }
 
 
+    public EventWriterMongoSync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait, boolean isLogfile, int logSize, int threadNumber, List<EventRollup> rollups, EventBucketLayout bucketLayout, int bulkBytes, int maxRetries, long retryDelay, Map<String, EventWriteOptions> writeOptions) {
+        this.queue = queue;
+        this.mongoURL = mongoURL;
+        this.bulkSize = bulkSize;
+        this.maxWait = maxWait;
+        this.isLogfile = isLogfile;
+        this.logSize = logSize;
+        this.threadNumber = threadNumber;
+        this.rollups = rollups;
+        this.bucketLayout = bucketLayout;
+        this.bulkBytes = bulkBytes;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.writeOptions = writeOptions;
+    }
+
+
+    public EventWriterMongoSync(BlockingQueue<EventDocument> queue, String mongoURL, int bulkSize, int maxWait, boolean isLogfile, int logSize, int threadNumber, int loadTestMaxMessages, List<EventRollup> rollups, EventBucketLayout bucketLayout, int bulkBytes, int maxRetries, long retryDelay, Map<String, EventWriteOptions> writeOptions) {
+        this.queue = queue;
+        this.mongoURL = mongoURL;
+        this.bulkSize = bulkSize;
+        this.maxWait = maxWait;
+        this.isLogfile = isLogfile;
+        this.logSize = logSize;
+        this.threadNumber = threadNumber;
+        this.isLoadTest = true;
+        this.loadTestMaxMessages = loadTestMaxMessages;
+        this.rollups = rollups;
+        this.bucketLayout = bucketLayout;
+        this.bulkBytes = bulkBytes;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.writeOptions = writeOptions;
+    }
+
+
     public void run() {
         // Connect to MongoDB database
         MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoURL));
         MongoDatabase database = mongoClient.getDatabase(EventProperties.STORAGE_DATABASE_NAME);
 
+        // Event documents are encoded directly to BSON when inserted
+        this.codecRegistry = EventDocumentCodec.createCodecRegistry(database.getCodecRegistry());
+
         // Create hash map of collections
         Map<String, MongoCollection<Document>> collectionMap = new HashMap<String, MongoCollection<Document>>();
 
@@ -111,100 +172,103 @@ public class EventWriterMongoSync implements Runnable {
         long timer0 = System.currentTimeMillis();
         long timer1 = timer0;
         long timer2 = timer0;
-        boolean skipLog = false;
 
-        Map<String, List<Document>> documentMap = new HashMap<String, List<Document>>();
+        Map<String, List<EventDocument>> documentMap = new HashMap<String, List<EventDocument>>();
         try {
             if (isLogfile)
                 logfileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("EventWriterMongoSync_benchmark_" + this.threadNumber + ".txt"), "ISO-8859-1"));
 
-            while (true) {
-                long timeoutExpired = System.currentTimeMillis() + this.maxWait;
-                EventDocument eventDocument = queue.take();
+            // Flush policy bounds pending documents by count, estimated size and age of the oldest event
+            EventFlushPolicy flushPolicy = new EventFlushPolicy(this.bulkSize, this.bulkBytes, this.maxWait);
+            List<EventDocument> batch = new ArrayList<EventDocument>(this.bulkSize);
 
-                String collectionId = eventDocument.getCollectionId();
+            while (true) {
+                // Wait for the next event, but no longer than until the oldest pending event is due to be written
+                EventDocument eventDocument;
+                if (flushPolicy.getPendingDocuments() == 0)
+                    eventDocument = queue.take();
+                else
+                    eventDocument = queue.poll(Math.max(flushPolicy.getFlushDeadline() - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
 
-                if (!collectionId.matches(EventProperties.STORAGE_HEARTBEAT)) {
-                    cnt++;
-                    skipLog = false;
+                // Drain the events already queued without blocking
+                if (eventDocument != null) {
+                    batch.add(eventDocument);
+                    queue.drainTo(batch, this.bulkSize - 1);
                 }
-                else
-                    skipLog = true;
 
-                // Add data for bulk write
-                if (!collectionId.matches(EventProperties.STORAGE_HEARTBEAT)) {
-                    Document document = eventDocument.getDocument();
+                long now = System.currentTimeMillis();
 
+                for (EventDocument batchDocument : batch) {
+                    String collectionId = batchDocument.getCollectionId();
+
+                    cnt++;
+
+                    // Add data for bulk write
                     if (!collectionMap.containsKey(collectionId)) {
-                        collectionMap.put(collectionId, database.getCollection(collectionId));
-                        List<Document> documentList = new ArrayList<Document>();
+                        WriteConcern writeConcern = getWriteOptions(collectionId).getWriteConcern();
+                        collectionMap.put(collectionId, (writeConcern == null) ? database.getCollection(collectionId) : database.getCollection(collectionId).withWriteConcern(writeConcern));
+                        List<EventDocument> documentList = new ArrayList<EventDocument>();
                         documentMap.put(collectionId, documentList);
                     }
 
-                    documentMap.get(collectionId).add(document);
-                }
-                // Write data if heartbeat timeout is received
-                else {
-                    for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
-                        String key = entry.getKey();
-                        if (!documentMap.get(key).isEmpty()) {
-                            collectionMap.get(key).insertMany(documentMap.get(key));
-                            documentMap.get(key).clear();
-                        }
-                    }
-                }
+                    documentMap.get(collectionId).add(batchDocument);
+                    flushPolicy.add(batchDocument);
 
-                // Write data if bulk size or max wait (ms) is reached
-                if ((cnt % this.bulkSize == 0) || (System.currentTimeMillis() >= timeoutExpired)) {
-                    for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
-                        String key = entry.getKey();
-                        if (!documentMap.get(key).isEmpty()) {
-                            collectionMap.get(key).insertMany(documentMap.get(key));
-                            documentMap.get(key).clear();
-                        }
+                    // Write data if bulk size, bulk bytes or max wait (ms) of the oldest pending event is reached
+                    if (flushPolicy.isFlushRequired(now)) {
+                        writePending(database, collectionMap, documentMap);
+                        flushPolicy.reset();
                     }
-                }
-
-                // Benchmark output
-                if ((!skipLog) && (cnt % this.logSize == 0)) {
-                    timer2 = System.currentTimeMillis();
-                    long difference = timer2 - timer1;
-
-                    if (difference != 0) {
-                        long average = (this.logSize * 1000) / (timer2 - timer1);
 
-                        System.out.println("Benchmark: ");
-                        System.out.println("  Records written  : " + cnt);
-                        System.out.println("  Average records/s: " + average);
-                        timer1 = timer2;
+                    // Benchmark output
+                    if (cnt % this.logSize == 0) {
+                        timer2 = System.currentTimeMillis();
+                        long difference = timer2 - timer1;
 
-                        if (isLogfile) {
-                            logfileWriter.write(cnt + "," + average + System.getProperty("line.separator"));
-                            logfileWriter.flush();
-                        }
-
-                        if (cnt == this.loadTestMaxMessages) {
-                            long loadTestStart = timer0 / 1000;
-                            long loadTestEnd = timer2 / 1000;
-                            long loadTestTime = loadTestEnd - loadTestStart;
-                            long loadTestAverage = this.loadTestMaxMessages / loadTestTime;
+                        if (difference != 0) {
+                            long average = (this.logSize * 1000) / (timer2 - timer1);
 
-                            System.out.println("*****************************");
-                            System.out.println("Load test results: ");
+                            System.out.println("Benchmark: ");
                             System.out.println("  Records written  : " + cnt);
-                            System.out.println("  Average records/s: " + loadTestAverage);
+                            System.out.println("  Average records/s: " + average);
+                            timer1 = timer2;
 
                             if (isLogfile) {
-                                logfileWriter.write("*****************************" + System.getProperty("line.separator"));
-                                logfileWriter.write("Load test results: " + System.getProperty("line.separator"));
-                                logfileWriter.write("  Records written  : " + cnt + System.getProperty("line.separator"));
-                                logfileWriter.write("  Average records/s: " + loadTestAverage + System.getProperty("line.separator"));
+                                logfileWriter.write(cnt + "," + average + System.getProperty("line.separator"));
                                 logfileWriter.flush();
                             }
-                        }
 
+                            if (cnt == this.loadTestMaxMessages) {
+                                long loadTestStart = timer0 / 1000;
+                                long loadTestEnd = timer2 / 1000;
+                                long loadTestTime = loadTestEnd - loadTestStart;
+                                long loadTestAverage = this.loadTestMaxMessages / loadTestTime;
+
+                                System.out.println("*****************************");
+                                System.out.println("Load test results: ");
+                                System.out.println("  Records written  : " + cnt);
+                                System.out.println("  Average records/s: " + loadTestAverage);
+
+                                if (isLogfile) {
+                                    logfileWriter.write("*****************************" + System.getProperty("line.separator"));
+                                    logfileWriter.write("Load test results: " + System.getProperty("line.separator"));
+                                    logfileWriter.write("  Records written  : " + cnt + System.getProperty("line.separator"));
+                                    logfileWriter.write("  Average records/s: " + loadTestAverage + System.getProperty("line.separator"));
+                                    logfileWriter.flush();
+                                }
+                            }
+
+                        }
                     }
                 }
+
+                batch.clear();
+
+                // Write data if max wait (ms) of the oldest pending event is reached
+                if (flushPolicy.isFlushRequired(System.currentTimeMillis())) {
+                    writePending(database, collectionMap, documentMap);
+                    flushPolicy.reset();
+                }
             }
         } catch (InterruptedException e) {
             System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -223,4 +287,202 @@ public class EventWriterMongoSync implements Runnable {
         mongoClient.close();
     }
 
+
+    private void writePending(MongoDatabase database, Map<String, MongoCollection<Document>> collectionMap, Map<String, List<EventDocument>> documentMap) {
+        for (Map.Entry<String, MongoCollection<Document>> entry : collectionMap.entrySet()) {
+            String key = entry.getKey();
+            if (!documentMap.get(key).isEmpty()) {
+                // Indexes are created when a collection is first written, failed index builds are retried on a later write
+                EventIndexManager.ensureIndexes(collectionMap.get(key), key, isBucketWrite(key));
+
+                // Rollup documents are built before the insert, rollups only count events that were written
+                List<Document> rollupDocuments = getRollupDocuments(key, documentMap.get(key));
+                if (writeDocuments(collectionMap.get(key), key, documentMap.get(key)))
+                    writeRollups(database, key, rollupDocuments);
+                documentMap.get(key).clear();
+            }
+        }
+    }
+
+
+    private boolean writeDocuments(MongoCollection<Document> collection, String collectionId, List<EventDocument> eventDocuments) {
+        // Pack simple events into time bucket documents if enabled, bucket updates are only retried once the unique index on batch ids exists
+        boolean isBucketWrite = isBucketWrite(collectionId);
+        boolean isRetried = !isBucketWrite || EventIndexManager.isCreated(collectionId);
+        List<UpdateOneModel<Document>> bucketUpdates = isBucketWrite ? bucketLayout.createUpdates(getDocuments(eventDocuments)) : null;
+        EventWriteOptions options = getWriteOptions(collectionId);
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                // Retries are unordered, events inserted or bucket updates applied by an earlier attempt only fail with duplicate key
+                if (isBucketWrite)
+                    collection.bulkWrite(bucketUpdates, options.getBulkWriteOptions(options.isOrdered() && (attempt == 0)));
+                else {
+                    InsertManyOptions insertOptions = options.getInsertManyOptions().ordered(options.isOrdered() && (attempt == 0));
+                    collection.withDocumentClass(EventDocument.class).withCodecRegistry(this.codecRegistry).insertMany(eventDocuments, insertOptions);
+                }
+
+                acknowledge(eventDocuments, true);
+                return true;
+            }
+            catch (MongoException e) {
+                if ((attempt > 0) && isDuplicateKeyOnly(e)) {
+                    acknowledge(eventDocuments, true);
+                    return true;
+                }
+
+                if (!isRetried || (attempt >= maxRetries)) {
+                    // Failed events are not acknowledged as written, their Kafka offsets are not committed
+                    System.out.println(e.getClass().getName() + ": " + e.getMessage());
+                    acknowledge(eventDocuments, false);
+                    return false;
+                }
+
+                System.out.println(e.getClass().getName() + ": " + e.getMessage() + " (retry " + (attempt + 1) + " of " + maxRetries + ")");
+            }
+
+            try {
+                Thread.sleep(retryDelay * (attempt + 1));
+            }
+            catch (InterruptedException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+                Thread.currentThread().interrupt();
+                acknowledge(eventDocuments, false);
+                return false;
+            }
+        }
+    }
+
+
+    private boolean isBucketWrite(String collectionId) {
+        return (bucketLayout != null) && EventBucketLayout.isBucketSource(collectionId);
+    }
+
+
+    private boolean isDuplicateKeyOnly(MongoException e) {
+        if (!(e instanceof MongoBulkWriteException))
+            return false;
+
+        for (BulkWriteError error : ((MongoBulkWriteException)e).getWriteErrors()) {
+            if (error.getCode() != 11000)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private void acknowledge(List<EventDocument> eventDocuments, boolean isWritten) {
+        for (EventDocument eventDocument : eventDocuments)
+            eventDocument.acknowledge(isWritten);
+    }
+
+
+    private List<Document> getRollupDocuments(String collectionId, List<EventDocument> eventDocuments) {
+        if (rollups.isEmpty() || !EventRollup.isRollupSource(collectionId))
+            return null;
+
+        return getDocuments(eventDocuments);
+    }
+
+
+    private void writeRollups(MongoDatabase database, String collectionId, List<Document> documents) {
+        if (documents == null)
+            return;
+
+        // One batch id for all tiers, buckets already updated with it are skipped
+        ObjectId batchId = new ObjectId();
+
+        // Update rollup tiers with one unordered bulk upsert per tier, a failed tier does not stop the writer or the other tiers
+        for (EventRollup rollup : rollups) {
+            String rollupCollectionId = rollup.getCollectionId(collectionId);
+            MongoCollection<Document> rollupCollection = database.getCollection(rollupCollectionId);
+            EventIndexManager.ensureIndexes(rollupCollection, rollupCollectionId);
+
+            writeRollup(rollupCollection, rollupCollectionId, rollup, documents, batchId);
+        }
+    }
+
+
+    private void writeRollup(MongoCollection<Document> rollupCollection, String rollupCollectionId, EventRollup rollup, List<Document> documents, ObjectId batchId) {
+        // Rollup updates are retried like inserts, buckets are read again on each attempt and buckets already updated with the batch id are skipped
+        for (int attempt = 0; ; attempt++) {
+            List<UpdateOneModel<Document>> gapUpdates = takeRollupGaps(rollupCollectionId);
+            try {
+                // Buckets are read first, the mean and M2 of each property are merged with the batch
+                List<Document> buckets = rollupCollection.find(rollup.createBucketFilter(documents)).projection(rollup.getBucketProjection()).into(new ArrayList<Document>());
+                List<UpdateOneModel<Document>> updates = rollup.createUpdates(documents, batchId, buckets);
+                updates.addAll(gapUpdates);
+                rollupCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+                return;
+            }
+            catch (MongoException e) {
+                addRollupGaps(rollupCollectionId, gapUpdates);
+                if (attempt >= maxRetries) {
+                    // The range of the batch is marked as not covered, the gap is written with the next batch of the tier if this write also fails
+                    System.out.println(e.getClass().getName() + ": " + e.getMessage() + " (rollup " + rollupCollectionId + ")");
+                    writeRollupGap(rollupCollection, rollupCollectionId, rollup.createGapUpdate(documents));
+                    return;
+                }
+
+                System.out.println(e.getClass().getName() + ": " + e.getMessage() + " (rollup " + rollupCollectionId + ", retry " + (attempt + 1) + " of " + maxRetries + ")");
+            }
+
+            try {
+                Thread.sleep(retryDelay * (attempt + 1));
+            }
+            catch (InterruptedException e) {
+                System.out.println(e.getClass().getName() + ": " + e.getMessage());
+                Thread.currentThread().interrupt();
+                addRollupGaps(rollupCollectionId, Arrays.asList(rollup.createGapUpdate(documents)));
+                return;
+            }
+        }
+    }
+
+
+    private void writeRollupGap(MongoCollection<Document> rollupCollection, String rollupCollectionId, UpdateOneModel<Document> gapUpdate) {
+        try {
+            rollupCollection.updateOne(gapUpdate.getFilter(), gapUpdate.getUpdate(), gapUpdate.getOptions());
+        }
+        catch (MongoException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage() + " (rollup gap " + rollupCollectionId + ")");
+            addRollupGaps(rollupCollectionId, Arrays.asList(gapUpdate));
+        }
+    }
+
+
+    private List<UpdateOneModel<Document>> takeRollupGaps(String rollupCollectionId) {
+        List<UpdateOneModel<Document>> gapUpdates = rollupGaps.remove(rollupCollectionId);
+        if (gapUpdates == null)
+            return new ArrayList<UpdateOneModel<Document>>();
+
+        return gapUpdates;
+    }
+
+
+    private void addRollupGaps(String rollupCollectionId, List<UpdateOneModel<Document>> gapUpdates) {
+        if (gapUpdates.isEmpty())
+            return;
+
+        if (!rollupGaps.containsKey(rollupCollectionId))
+            rollupGaps.put(rollupCollectionId, new ArrayList<UpdateOneModel<Document>>());
+        rollupGaps.get(rollupCollectionId).addAll(gapUpdates);
+    }
+
+
+    private EventWriteOptions getWriteOptions(String collectionId) {
+        return EventWriteOptions.getWriteOptions(this.writeOptions, collectionId);
+    }
+
+
+    private List<Document> getDocuments(List<EventDocument> eventDocuments) {
+        // Documents are only built for bucket layout and rollups, inserted events are encoded by EventDocumentCodec
+        List<Document> documents = new ArrayList<Document>(eventDocuments.size());
+        for (EventDocument eventDocument : eventDocuments)
+            documents.add(eventDocument.getDocument());
+
+        return documents;
+    }
+
 }
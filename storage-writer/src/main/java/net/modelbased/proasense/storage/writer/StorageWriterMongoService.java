@@ -17,7 +17,10 @@
  */
 package net.modelbased.proasense.storage.writer;
 
+import net.modelbased.proasense.storage.EventBucketLayout;
 import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventRollup;
+import net.modelbased.proasense.storage.EventStorageProfile;
 
 import eu.proasense.internal.AnomalyEvent;
 import eu.proasense.internal.DerivedEvent;
@@ -37,9 +40,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -99,6 +102,15 @@ public class StorageWriterMongoService {
     }
 
 
+    private static <T> Runnable createListener(String consumer, Class<T> eventType, EventQueue queue, String zooKeeper, String bootstrapServers, String groupId, String topic, boolean isTopicFilter, EventStorageProfile profile, long pollTimeout, String commitMode, int commitEvents, long commitInterval, long commitTimeout, int noDecodeWorkers) {
+        // Default listener uses the ZooKeeper consumer connector with auto commit, poll uses the broker coordinated KafkaConsumer
+        if (EventListenerKafkaConsumer.CONSUMER_POLL.equals(consumer))
+            return new EventListenerKafkaConsumer<T>(eventType, queue, bootstrapServers, groupId, topic, isTopicFilter, profile, pollTimeout, commitMode, commitEvents, commitInterval, commitTimeout, noDecodeWorkers);
+
+        return new EventListenerKafka<T>(eventType, queue, zooKeeper, groupId, topic, isTopicFilter, profile, noDecodeWorkers);
+    }
+
+
     public static void main(String[] args) {
         // Get server properties
         StorageWriterMongoService storage = new StorageWriterMongoService();
@@ -118,6 +130,7 @@ public class StorageWriterMongoService {
         // Kafka broker configuration properties
         String zooKeeper = storage.serverProperties.getProperty("zookeeper.connect");
 //        String zooKeeper = System.getenv("ZOOKEEPER_CONNECT");
+        String bootstrapServers = storage.serverProperties.getProperty("kafka.bootstrap.servers");
         String groupId = "StorageWriterServiceMongoServer";
 
         // SensApp registry configuration properties
@@ -145,6 +158,24 @@ public class StorageWriterMongoService {
         int NO_RECOMMENDATIONEVENT_LISTENERS = new Integer(storage.serverProperties.getProperty("proasense.storage.event.recommendation.listeners")).intValue();
         int NO_FEEDBACKEVENT_LISTENERS = new Integer(storage.serverProperties.getProperty("proasense.storage.event.feedback.listeners")).intValue();
 
+        EventStorageProfile SIMPLEEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.simple.profile", "both").toUpperCase());
+        EventStorageProfile DERIVEDEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.derived.profile", "both").toUpperCase());
+        EventStorageProfile PREDICTEDEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.predicted.profile", "both").toUpperCase());
+        EventStorageProfile ANOMALYEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.anomaly.profile", "both").toUpperCase());
+        EventStorageProfile RECOMMENDATIONEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.recommendation.profile", "both").toUpperCase());
+        EventStorageProfile FEEDBACKEVENT_PROFILE = EventStorageProfile.valueOf(storage.serverProperties.getProperty("proasense.storage.event.feedback.profile", "both").toUpperCase());
+
+        // Kafka consumer configuration properties
+        String EVENT_CONSUMER = storage.serverProperties.getProperty("proasense.storage.event.consumer", EventListenerKafkaConsumer.CONSUMER_CONNECTOR);
+        long NO_EVENT_POLL_TIMEOUT = new Long(storage.serverProperties.getProperty("proasense.storage.event.poll.timeout", "1000")).longValue();
+        int NO_EVENT_DECODERS = new Integer(storage.serverProperties.getProperty("proasense.storage.event.decoders", "0")).intValue();
+
+        // Kafka offset commit configuration properties
+        String EVENT_COMMIT = storage.serverProperties.getProperty("proasense.storage.event.commit", EventListenerKafkaConsumer.COMMIT_AUTO);
+        int NO_EVENT_COMMIT_EVENTS = new Integer(storage.serverProperties.getProperty("proasense.storage.event.commit.events", "10000")).intValue();
+        long NO_EVENT_COMMIT_INTERVAL = new Long(storage.serverProperties.getProperty("proasense.storage.event.commit.interval", "5000")).longValue();
+        long NO_EVENT_COMMIT_TIMEOUT = new Long(storage.serverProperties.getProperty("proasense.storage.event.commit.timeout", "30000")).longValue();
+
         // MongoDB event writers configuration properties
         String MONGODB_URL = storage.serverProperties.getProperty("proasense.storage.mongodb.url");
 //        String MONGODB_URL = System.getenv("MONGODB_URL");
@@ -154,23 +185,46 @@ public class StorageWriterMongoService {
         int NO_MONGODB_WRITERS = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.writers")).intValue();
         int NO_MONGODB_BULKSIZE = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.bulksize")).intValue();
         int NO_MONGODB_MAXWAIT = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.maxwait")).intValue();
-        int NO_MONGODB_HEARTBEAT = NO_MONGODB_MAXWAIT*2;
+        int NO_MONGODB_BULKBYTES = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.bulkbytes", "8388608")).intValue();
+        int NO_MONGODB_INFLIGHT = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.inflight", "4")).intValue();
+        int NO_MONGODB_RETRIES = new Integer(storage.serverProperties.getProperty("proasense.storage.mongodb.retries", "3")).intValue();
+        long NO_MONGODB_RETRYDELAY = new Long(storage.serverProperties.getProperty("proasense.storage.mongodb.retrydelay", "1000")).longValue();
+
+        // MongoDB write options per event type configuration properties
+        Map<String, EventWriteOptions> MONGODB_WRITE_OPTIONS = EventWriteOptions.createWriteOptions(storage.serverProperties);
+        if (EventListenerKafkaConsumer.COMMIT_ACKNOWLEDGED.equals(EVENT_COMMIT)) {
+            // The consumer connector only commits the consumed offsets of all partitions at once, it cannot commit up to the written events
+            if (!EventListenerKafkaConsumer.CONSUMER_POLL.equals(EVENT_CONSUMER))
+                throw new IllegalArgumentException("Acknowledged offset commits are only supported with the poll consumer, proasense.storage.event.consumer=" + EVENT_CONSUMER);
+            EventWriteOptions.checkAcknowledged(MONGODB_WRITE_OPTIONS, MONGODB_URL);
+        }
+
+        // MongoDB rollup collections configuration properties
+        List<EventRollup> MONGODB_ROLLUPS = EventRollup.createRollups(storage.serverProperties.getProperty("proasense.storage.mongodb.rollups", ""));
 
-        // Blocking queue for multi-threaded application
+        // MongoDB simple event storage layout configuration properties
+        String MONGODB_LAYOUT = storage.serverProperties.getProperty("proasense.storage.mongodb.layout", "event");
+        String MONGODB_BUCKET_WINDOW = storage.serverProperties.getProperty("proasense.storage.mongodb.bucket.window", "1m");
+        String MONGODB_BUCKET_SIZE = storage.serverProperties.getProperty("proasense.storage.mongodb.bucket.size", "1000");
+        EventBucketLayout MONGODB_BUCKET_LAYOUT = EventBucketLayout.createLayout(MONGODB_LAYOUT, MONGODB_BUCKET_WINDOW, MONGODB_BUCKET_SIZE);
+
+        // Blocking queues for multi-threaded application, events are routed by collection to one queue per writer
         int NO_BLOCKINGQUEUE_SIZE = 1000000;
-        BlockingQueue<EventDocument> queue = new ArrayBlockingQueue<EventDocument>(NO_BLOCKINGQUEUE_SIZE);
+        String MONGODB_QUEUE = storage.serverProperties.getProperty("proasense.storage.mongodb.queue", "array");
+        String MONGODB_QUEUE_WAIT = storage.serverProperties.getProperty("proasense.storage.mongodb.queue.wait", "blocking");
+        EventQueueRouter queue = EventQueueRouter.createRouter(MONGODB_QUEUE, MONGODB_QUEUE_WAIT, NO_MONGODB_WRITERS, NO_BLOCKINGQUEUE_SIZE / NO_MONGODB_WRITERS);
 
         // Total number of threads
         int NO_TOTAL_THREADS = 0;
 
         if (IS_LOAD_TESTING_ENABLED)
             NO_TOTAL_THREADS = NO_SIMPLEEVENT_LISTENERS
-                    + NO_MONGODB_WRITERS + 1;
+                    + NO_MONGODB_WRITERS;
         else
             NO_TOTAL_THREADS = NO_SIMPLEEVENT_LISTENERS + NO_DERIVEDEVENT_LISTENERS
                     + NO_PREDICTEDEVENT_LISTENERS + NO_ANOMALYEVENT_LISTENERS
                     + NO_RECOMMENDATIONEVENT_LISTENERS + NO_FEEDBACKEVENT_LISTENERS
-                    + NO_MONGODB_WRITERS + 1;
+                    + NO_MONGODB_WRITERS;
 
         // Create executor environment for threads
         ArrayList<Runnable> workers = new ArrayList<Runnable>(NO_TOTAL_THREADS);
@@ -179,38 +233,38 @@ public class StorageWriterMongoService {
         if (IS_LOAD_TESTING_ENABLED) {
             // Create threads for Kafka simple event listeners
             for (int i = 0; i < NO_SIMPLEEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<SimpleEvent>(SimpleEvent.class, queue, zooKeeper, groupId, SIMPLEEVENT_TOPIC, IS_SIMPLEEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, SimpleEvent.class, queue, zooKeeper, bootstrapServers, groupId, SIMPLEEVENT_TOPIC, IS_SIMPLEEVENT_FILTER, SIMPLEEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
         }
         else {
             // Create threads for Kafka simple event listeners
             for (int i = 0; i < NO_SIMPLEEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<SimpleEvent>(SimpleEvent.class, queue, zooKeeper, groupId, SIMPLEEVENT_TOPIC, IS_SIMPLEEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, SimpleEvent.class, queue, zooKeeper, bootstrapServers, groupId, SIMPLEEVENT_TOPIC, IS_SIMPLEEVENT_FILTER, SIMPLEEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
 
             // Create threads for Kafka derived event listeners
             for (int i = 0; i < NO_DERIVEDEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<DerivedEvent>(DerivedEvent.class, queue, zooKeeper, groupId, DERIVEDEVENT_TOPIC, IS_DERIVEDEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, DerivedEvent.class, queue, zooKeeper, bootstrapServers, groupId, DERIVEDEVENT_TOPIC, IS_DERIVEDEVENT_FILTER, DERIVEDEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
 
             // Create threads for Kafka predicted event listeners
             for (int i = 0; i < NO_PREDICTEDEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<PredictedEvent>(PredictedEvent.class, queue, zooKeeper, groupId, PREDICTEDEVENT_TOPIC, IS_PREDICTEDEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, PredictedEvent.class, queue, zooKeeper, bootstrapServers, groupId, PREDICTEDEVENT_TOPIC, IS_PREDICTEDEVENT_FILTER, PREDICTEDEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
 
             // Create threads for Kafka anomaly event listeners
             for (int i = 0; i < NO_ANOMALYEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<AnomalyEvent>(AnomalyEvent.class, queue, zooKeeper, groupId, ANOMALYEVENT_TOPIC, IS_ANOMALYEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, AnomalyEvent.class, queue, zooKeeper, bootstrapServers, groupId, ANOMALYEVENT_TOPIC, IS_ANOMALYEVENT_FILTER, ANOMALYEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
 
             // Create threads for Kafka recommendation event listeners
             for (int i = 0; i < NO_RECOMMENDATIONEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<RecommendationEvent>(RecommendationEvent.class, queue, zooKeeper, groupId, RECOMMENDATIONEVENT_TOPIC, IS_RECOMMENDATIONEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, RecommendationEvent.class, queue, zooKeeper, bootstrapServers, groupId, RECOMMENDATIONEVENT_TOPIC, IS_RECOMMENDATIONEVENT_FILTER, RECOMMENDATIONEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
 
             // Create threads for Kafka feedback event listeners
             for (int i = 0; i < NO_FEEDBACKEVENT_LISTENERS; i++) {
-                workers.add(new EventListenerKafka<FeedbackEvent>(FeedbackEvent.class, queue, zooKeeper, groupId, FEEDBACKEVENT_TOPIC, IS_FEEDBACKEVENT_FILTER));
+                workers.add(createListener(EVENT_CONSUMER, FeedbackEvent.class, queue, zooKeeper, bootstrapServers, groupId, FEEDBACKEVENT_TOPIC, IS_FEEDBACKEVENT_FILTER, FEEDBACKEVENT_PROFILE, NO_EVENT_POLL_TIMEOUT, EVENT_COMMIT, NO_EVENT_COMMIT_EVENTS, NO_EVENT_COMMIT_INTERVAL, NO_EVENT_COMMIT_TIMEOUT, NO_EVENT_DECODERS));
             }
         }
 
@@ -218,21 +272,18 @@ public class StorageWriterMongoService {
         for (int i = 0; i < NO_MONGODB_WRITERS; i++) {
             if (IS_LOAD_TESTING_ENABLED) {
                 if (IS_MONGODB_SYNCDRIVER)
-                    workers.add(new EventWriterMongoSync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
+                    workers.add(new EventWriterMongoSync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES, MONGODB_ROLLUPS, MONGODB_BUCKET_LAYOUT, NO_MONGODB_BULKBYTES, NO_MONGODB_RETRIES, NO_MONGODB_RETRYDELAY, MONGODB_WRITE_OPTIONS));
                 else
-                    workers.add(new EventWriterMongoAsync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
+                    workers.add(new EventWriterMongoAsync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES, MONGODB_ROLLUPS, MONGODB_BUCKET_LAYOUT, NO_MONGODB_BULKBYTES, NO_MONGODB_INFLIGHT, NO_MONGODB_RETRIES, NO_MONGODB_RETRYDELAY, MONGODB_WRITE_OPTIONS));
             }
             else {
                 if (IS_MONGODB_SYNCDRIVER)
-                    workers.add(new EventWriterMongoSync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
+                    workers.add(new EventWriterMongoSync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, MONGODB_ROLLUPS, MONGODB_BUCKET_LAYOUT, NO_MONGODB_BULKBYTES, NO_MONGODB_RETRIES, NO_MONGODB_RETRYDELAY, MONGODB_WRITE_OPTIONS));
                 else
-                    workers.add(new EventWriterMongoAsync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
+                    workers.add(new EventWriterMongoAsync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, MONGODB_ROLLUPS, MONGODB_BUCKET_LAYOUT, NO_MONGODB_BULKBYTES, NO_MONGODB_INFLIGHT, NO_MONGODB_RETRIES, NO_MONGODB_RETRYDELAY, MONGODB_WRITE_OPTIONS));
             }
         }
 
-        // Create thread for MongoDB heartbeat
-        workers.add(new EventHeartbeat(queue, NO_MONGODB_HEARTBEAT));
-
         // Execute all threads
         for (int i = 0; i < NO_TOTAL_THREADS; i++) {
             executor.execute(workers.get(i));
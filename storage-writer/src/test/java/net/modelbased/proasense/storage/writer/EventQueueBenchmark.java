@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+
+import org.bson.Document;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class EventQueueBenchmark {
+    private Properties clientProperties;
+
+
+    public EventQueueBenchmark() {
+        // Get client properties
+        this.clientProperties = loadClientProperties();
+    }
+
+
+    private Properties loadClientProperties() {
+        Properties clientProperties = new Properties();
+        String propFilename = "client.properties";
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(propFilename);
+
+        try {
+            if (inputStream != null) {
+                clientProperties.load(inputStream);
+            } else
+                throw new FileNotFoundException("Property file: '" + propFilename + "' not found in classpath.");
+        }
+        catch (IOException e) {
+            System.out.println("Exception:" + e.getMessage());
+        }
+
+        return clientProperties;
+    }
+
+
+    public static void main(String[] args) {
+        // Get benchmark properties
+        EventQueueBenchmark benchmark = new EventQueueBenchmark();
+
+        // Queue benchmark properties
+        int NO_QUEUE_PRODUCERS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.queue.producers", "4")).intValue();
+        int NO_QUEUE_EVENTS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.queue.events", "10000000")).intValue();
+        int NO_QUEUE_RATE = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.queue.rate", "100000")).intValue();
+        int NO_QUEUE_ITERATIONS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.queue.iterations", "5")).intValue();
+        int NO_QUEUE_SIZE = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.queue.size", "1000000")).intValue();
+        int NO_MONGODB_BULKSIZE = new Integer(benchmark.clientProperties.getProperty("proasense.storage.mongodb.bulksize", "1000")).intValue();
+
+        // Saturated throughput, followed by hand-off latency at a fixed event rate
+        for (int rate : new int[] { 0, NO_QUEUE_RATE }) {
+            for (int i = 0; i < NO_QUEUE_ITERATIONS; i++) {
+                // First iteration is warm-up and not reported
+                boolean isReported = i > 0;
+
+                benchmark.run("array (take)", new ArrayBlockingQueue<EventDocument>(NO_QUEUE_SIZE), false, NO_QUEUE_PRODUCERS, NO_QUEUE_EVENTS, rate, NO_MONGODB_BULKSIZE, isReported);
+                benchmark.run("array (drainTo)", new ArrayBlockingQueue<EventDocument>(NO_QUEUE_SIZE), true, NO_QUEUE_PRODUCERS, NO_QUEUE_EVENTS, rate, NO_MONGODB_BULKSIZE, isReported);
+
+                for (EventWaitStrategy waitStrategy : EventWaitStrategy.values())
+                    benchmark.run("ring (" + waitStrategy.toString().toLowerCase() + ")", new EventRingBuffer<EventDocument>(NO_QUEUE_SIZE, waitStrategy), true, NO_QUEUE_PRODUCERS, NO_QUEUE_EVENTS, rate, NO_MONGODB_BULKSIZE, isReported);
+            }
+        }
+    }
+
+
+    private void run(String queueName, final BlockingQueue<EventDocument> queue, boolean isBatchConsumer, int noProducers, int noEvents, int rate, int bulkSize, boolean isReported) {
+        // Fixed rate runs are limited to ten seconds of events
+        final int eventsPerProducer = (rate > 0 ? Math.min(noEvents, rate * 10) : noEvents) / noProducers;
+        final long nanosPerEvent = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * noProducers / rate : 0;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < noProducers; p++) {
+            final String collectionId = "simple.benchmark." + p;
+            Thread producer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        long nextTime = System.nanoTime();
+                        for (int i = 0; i < eventsPerProducer; i++) {
+                            if (nanosPerEvent > 0) {
+                                nextTime = nextTime + nanosPerEvent;
+                                long sleepTime = nextTime - System.nanoTime();
+                                if (sleepTime > 0)
+                                    LockSupport.parkNanos(sleepTime);
+                            }
+
+                            queue.put(new EventDocument(collectionId, new Document("timestamp", System.nanoTime())));
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        System.out.println(e.getClass().getName() + ": " + e.getMessage());
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        long totalEvents = (long)eventsPerProducer * noProducers;
+        long totalLatency = 0;
+        long maxLatency = 0;
+        List<EventDocument> batch = new ArrayList<EventDocument>(bulkSize);
+
+        long startTime = System.nanoTime();
+        startLatch.countDown();
+
+        // Consumer drains the queue the same way as the event writers
+        try {
+            long consumed = 0;
+            while (consumed < totalEvents) {
+                batch.add(queue.take());
+                if (isBatchConsumer)
+                    queue.drainTo(batch, bulkSize - 1);
+
+                long now = System.nanoTime();
+                for (EventDocument eventDocument : batch) {
+                    long latency = now - eventDocument.getDocument().getLong("timestamp");
+                    totalLatency = totalLatency + latency;
+                    maxLatency = Math.max(maxLatency, latency);
+                }
+
+                consumed = consumed + batch.size();
+                batch.clear();
+            }
+
+            for (Thread producer : producers)
+                producer.join();
+        }
+        catch (InterruptedException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        long elapsedTime = System.nanoTime() - startTime;
+
+        if (isReported) {
+            long eventsPerSecond = totalEvents * TimeUnit.SECONDS.toNanos(1) / elapsedTime;
+            System.out.println((rate > 0 ? "rate " + rate + "/s " : "saturated ") + queueName
+                    + ": " + eventsPerSecond + " events/s"
+                    + ", average latency " + TimeUnit.NANOSECONDS.toMicros(totalLatency / totalEvents) + " us"
+                    + ", max latency " + TimeUnit.NANOSECONDS.toMicros(maxLatency) + " us");
+        }
+    }
+
+}
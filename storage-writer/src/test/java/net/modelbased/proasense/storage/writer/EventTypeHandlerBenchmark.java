@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2014-2015 SINTEF
+ *
+ *     Brian Elvesæter <brian.elvesater@sintef.no>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.modelbased.proasense.storage.writer;
+
+import net.modelbased.proasense.storage.EventDocument;
+import net.modelbased.proasense.storage.EventDocumentConverter;
+import net.modelbased.proasense.storage.EventProperties;
+import net.modelbased.proasense.storage.EventSerializer;
+import net.modelbased.proasense.storage.EventStorageProfile;
+
+import eu.proasense.internal.SimpleEvent;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+public class EventTypeHandlerBenchmark {
+    private Properties clientProperties;
+
+
+    public EventTypeHandlerBenchmark() {
+        // Get client properties
+        this.clientProperties = loadClientProperties();
+    }
+
+
+    private Properties loadClientProperties() {
+        Properties clientProperties = new Properties();
+        String propFilename = "client.properties";
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(propFilename);
+
+        try {
+            if (inputStream != null) {
+                clientProperties.load(inputStream);
+            } else
+                throw new FileNotFoundException("Property file: '" + propFilename + "' not found in classpath.");
+        }
+        catch (IOException e) {
+            System.out.println("Exception:" + e.getMessage());
+        }
+
+        return clientProperties;
+    }
+
+
+    public static void main(String[] args) {
+        // Get benchmark properties
+        EventTypeHandlerBenchmark benchmark = new EventTypeHandlerBenchmark();
+
+        int NO_HANDLER_MESSAGES = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.handler.messages", "1000000")).intValue();
+        int NO_HANDLER_ITERATIONS = new Integer(benchmark.clientProperties.getProperty("proasense.benchmark.handler.iterations", "5")).intValue();
+
+        // Serialize simple events as they are received from Kafka
+        List<byte[]> messages = new ArrayList<byte[]>(NO_HANDLER_MESSAGES);
+        RandomEventGenerator generator = new RandomEventGenerator();
+        try {
+            TSerializer serializer = new TSerializer(new TBinaryProtocol.Factory());
+            for (int i = 0; i < NO_HANDLER_MESSAGES; i++)
+                messages.add(serializer.serialize(generator.generateSimpleEvent("benchmark." + (i % 100))));
+        }
+        catch (TException e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+
+        for (int i = 0; i < NO_HANDLER_ITERATIONS; i++) {
+            // First iteration is warm-up and not reported
+            boolean isReported = i > 0;
+
+            benchmark.run("class name matching", messages, false, isReported);
+            benchmark.run("event type handler", messages, true, isReported);
+        }
+    }
+
+
+    private void run(String name, List<byte[]> messages, boolean isHandler, boolean isReported) {
+        EventTypeHandler<SimpleEvent> handler = EventTypeHandler.createHandler(SimpleEvent.class, EventStorageProfile.BOTH);
+        int checksum = 0;
+
+        long startTime = System.nanoTime();
+        try {
+            for (byte[] bytes : messages) {
+                EventDocument eventDocument;
+                if (isHandler)
+                    eventDocument = handleMessage(handler, bytes);
+                else
+                    eventDocument = matchMessage(SimpleEvent.class, bytes);
+
+                // Both paths build the full MongoDB document so the same conversion work is measured
+                checksum = checksum + eventDocument.getCollectionId().length() + eventDocument.getDocument().size();
+            }
+        }
+        catch (Exception e) {
+            System.out.println(e.getClass().getName() + ": " + e.getMessage());
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+
+        if (isReported)
+            System.out.println(name + ": " + (elapsedTime / messages.size()) + " ns/event"
+                    + ", " + (messages.size() * 1000000000L / elapsedTime) + " events/s"
+                    + " (checksum " + checksum + ")");
+    }
+
+
+    private <T> EventDocument handleMessage(EventTypeHandler<T> handler, byte[] bytes) throws TException {
+        // Message handling of EventListenerKafka
+        T event = handler.createEvent();
+        EventSerializer.deserialize((TBase)event, bytes);
+
+        return handler.createDocument(event, bytes);
+    }
+
+
+    private <T> EventDocument matchMessage(Class<T> eventType, byte[] bytes) throws TException, IllegalAccessException, InstantiationException {
+        // Previous message handling with a deserializer, reflection and class name matching per message
+        TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
+        T event = eventType.newInstance();
+        deserializer.deserialize((TBase)event, bytes);
+
+        String eventTypeName = eventType.getName();
+
+        // Class name is matched against all six event types as in the previous listener
+        EventDocument eventDocument = null;
+        if (eventTypeName.matches(EventProperties.SIMPLEEVENT_CLASS_NAME)) {
+            EventDocumentConverter converter = new EventDocumentConverter((SimpleEvent) event, EventStorageProfile.BOTH);
+            eventDocument = new EventDocument(converter.getCollectionId(), converter.getDocument());
+        }
+        if (eventTypeName.matches(EventProperties.DERIVEDEVENT_CLASS_NAME)
+                || eventTypeName.matches(EventProperties.PREDICTEDEVENT_CLASS_NAME)
+                || eventTypeName.matches(EventProperties.ANOMALYEVENT_CLASS_NAME)
+                || eventTypeName.matches(EventProperties.RECOMMENDATIONEVENT_CLASS_NAME)
+                || eventTypeName.matches(EventProperties.FEEDBACKEVENT_CLASS_NAME))
+            throw new IllegalArgumentException("Unexpected event type: " + eventTypeName);
+
+        return eventDocument;
+    }
+
+}
@@ -32,12 +32,11 @@ import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TBinaryProtocol;
 
-import java.util.concurrent.BlockingQueue;
 
 
 public class RandomEventLocalGenerator<T> implements Runnable {
     private Class<T> eventType;
-    private BlockingQueue<EventDocument> queue;
+    private EventQueue queue;
     private String bootstrapServers;
     private String groupId;
     private String topic;
@@ -47,7 +46,7 @@ public class RandomEventLocalGenerator<T> implements Runnable {
     private RandomEventGenerator eventGenerator;
 
 
-    public RandomEventLocalGenerator(Class<T> eventType, BlockingQueue<EventDocument> queue, String collectionId, int sleep, int max) {
+    public RandomEventLocalGenerator(Class<T> eventType, EventQueue queue, String collectionId, int sleep, int max) {
         this.eventType = eventType;
         this.queue = queue;
         this.bootstrapServers = bootstrapServers;
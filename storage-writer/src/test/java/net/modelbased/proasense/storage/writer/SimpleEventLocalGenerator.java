@@ -25,19 +25,18 @@ import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TBinaryProtocol;
 
-import java.util.concurrent.BlockingQueue;
 
 
 public class SimpleEventLocalGenerator<T> implements Runnable {
     private Class<T> eventType;
-    private BlockingQueue<EventDocument> queue;
+    private EventQueue queue;
     private String collectionId;
     private int messages_per_second;
     private int max_messages;
     private RandomEventGenerator eventGenerator;
 
 
-    public SimpleEventLocalGenerator(Class<T> eventType, BlockingQueue<EventDocument> queue, String collectionId, int messages_per_second, int max_messages) {
+    public SimpleEventLocalGenerator(Class<T> eventType, EventQueue queue, String collectionId, int messages_per_second, int max_messages) {
         this.eventType = eventType;
         this.queue = queue;
         this.collectionId = collectionId;
@@ -24,15 +24,11 @@ import eu.proasense.internal.PredictedEvent;
 import eu.proasense.internal.RecommendationEvent;
 import eu.proasense.internal.SimpleEvent;
 
-import net.modelbased.proasense.storage.EventDocument;
-
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -116,21 +112,22 @@ public class StorageWriterMongoServiceLocalBenchmark {
         int NO_MONGODB_WRITERS = new Integer(benchmark.clientProperties.getProperty("proasense.storage.mongodb.writers")).intValue();
         int NO_MONGODB_BULKSIZE = new Integer(benchmark.clientProperties.getProperty("proasense.storage.mongodb.bulksize")).intValue();
         int NO_MONGODB_MAXWAIT = new Integer(benchmark.clientProperties.getProperty("proasense.storage.mongodb.maxwait")).intValue();
-        int NO_MONGOSTORAGE_HEARTBEAT = NO_MONGODB_MAXWAIT * 2;
 
-        // Blocking queue for multi-threaded application
+        // Blocking queues for multi-threaded application, events are routed by collection to one queue per writer
         int NO_BLOCKINGQUEUE_SIZE = 1000000;
-        BlockingQueue<EventDocument> queue = new ArrayBlockingQueue<EventDocument>(NO_BLOCKINGQUEUE_SIZE);
+        String MONGODB_QUEUE = benchmark.clientProperties.getProperty("proasense.storage.mongodb.queue", "array");
+        String MONGODB_QUEUE_WAIT = benchmark.clientProperties.getProperty("proasense.storage.mongodb.queue.wait", "blocking");
+        EventQueueRouter queue = EventQueueRouter.createRouter(MONGODB_QUEUE, MONGODB_QUEUE_WAIT, NO_MONGODB_WRITERS, NO_BLOCKINGQUEUE_SIZE / NO_MONGODB_WRITERS);
 
         // Total number of threads
         int NO_TOTAL_THREADS = 0;
 
         if (IS_LOAD_TESTING_ENABLED)
-            NO_TOTAL_THREADS = 1 + NO_MONGODB_WRITERS + 1;
+            NO_TOTAL_THREADS = 1 + NO_MONGODB_WRITERS;
         else
             NO_TOTAL_THREADS = NO_SIMPLEEVENT_GENERATORS + NO_DERIVEDEVENT_GENERATORS
                     + NO_PREDICTEDEVENT_GENERATORS + NO_ANOMALYEVENT_GENERATORS + NO_RECOMMENDATIONEVENT_GENERATORS + NO_FEEDBACKEVENT_GENERATORS
-                    + NO_MONGODB_WRITERS + 1;
+                    + NO_MONGODB_WRITERS;
 
         // Create executor environment for threads
         ArrayList<Runnable> workers = new ArrayList<Runnable>(NO_TOTAL_THREADS);
@@ -180,21 +177,18 @@ public class StorageWriterMongoServiceLocalBenchmark {
         for (int i = 0; i < NO_MONGODB_WRITERS; i++) {
             if (IS_LOAD_TESTING_ENABLED) {
                 if (IS_MONGODB_SYNCDRIVER)
-                    workers.add(new EventWriterMongoSync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
+                    workers.add(new EventWriterMongoSync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
                 else
-                    workers.add(new EventWriterMongoAsync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
+                    workers.add(new EventWriterMongoAsync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i, NO_LOAD_TESTING_MAX_MESSAGES));
             }
             else {
                 if (IS_MONGODB_SYNCDRIVER)
-                    workers.add(new EventWriterMongoSync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
+                    workers.add(new EventWriterMongoSync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
                 else
-                    workers.add(new EventWriterMongoAsync(queue, MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
+                    workers.add(new EventWriterMongoAsync(queue.getPartition(i), MONGODB_URL, NO_MONGODB_BULKSIZE, NO_MONGODB_MAXWAIT, IS_BENCHMARK_LOGFILE, NO_BENCHMARK_LOGSIZE, i));
             }
         }
 
-        // Create thread for MongoDB heartbeat
-        workers.add(new EventHeartbeat(queue, NO_MONGOSTORAGE_HEARTBEAT));
-
         // Execute all threads
         for (int i = 0; i < NO_TOTAL_THREADS; i++) {
             executor.execute(workers.get(i));